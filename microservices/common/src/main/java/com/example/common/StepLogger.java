@@ -0,0 +1,172 @@
+package com.example.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Per-PUID step logging for the request hot path, shared by the services.
+ *
+ * Steps use SLF4J parameterized messages, so nothing is formatted unless the line is
+ * written. A PUID is sampled when its hash falls under the configured percentage;
+ * the hash is the same in every service, so a sampled PUID is traced end to end.
+ * Steps of unsampled PUIDs are kept in a small ring and only written when the request fails.
+ *
+ * A request handled by one thread uses {@link #begin}, {@link #step}, {@link #fail} and
+ * {@link #end}, which keep the ring per thread. A request that hops threads carries its own
+ * {@link StepTrace} from {@link #trace} instead.
+ */
+public class StepLogger {
+
+    private static final String MDC_PUID = "puid";
+    private static final int BUFFER_SIZE = 32;
+
+    private final Logger logger;
+    private final int samplePercent;
+    private final ThreadLocal<StepTrace> traces;
+
+    public StepLogger(String loggerName, int samplePercent) {
+        this.logger = LoggerFactory.getLogger(loggerName);
+        this.samplePercent = samplePercent;
+        this.traces = ThreadLocal.withInitial(() -> new StepTrace());
+    }
+
+    public void begin(String puid) {
+        MDC.put(MDC_PUID, puid);
+        traces.get().reset(puid);
+    }
+
+    public void step(String format) {
+        traces.get().step(format, null, null);
+    }
+
+    public void step(String format, Object arg) {
+        traces.get().step(format, arg, null);
+    }
+
+    public void step(String format, Object arg1, Object arg2) {
+        traces.get().step(format, arg1, arg2);
+    }
+
+    /**
+     * Marks the current request as failed: replays the buffered steps, logs the failure
+     * and writes any further steps of this request directly.
+     */
+    public void fail(String format, Object arg1, Object arg2) {
+        traces.get().fail(format, arg1, arg2);
+    }
+
+    public void end() {
+        traces.get().reset(null);
+        MDC.remove(MDC_PUID);
+    }
+
+    // Steps of one request that is handed from thread to thread; only one thread may use it at a time
+    public StepTrace trace(String puid) {
+        StepTrace trace = new StepTrace();
+        trace.reset(puid);
+        return trace;
+    }
+
+    private boolean isSampled(String puid) {
+        return puid != null && Math.floorMod(puid.hashCode(), 100) < samplePercent;
+    }
+
+    public final class StepTrace {
+        private final String[] formats = new String[BUFFER_SIZE];
+        private final Object[] firstArgs = new Object[BUFFER_SIZE];
+        private final Object[] secondArgs = new Object[BUFFER_SIZE];
+        private String puid;
+        private int count;
+        private boolean sampled;
+
+        public void step(String format) {
+            step(format, null, null);
+        }
+
+        public void step(String format, Object arg) {
+            step(format, arg, null);
+        }
+
+        public void step(String format, Object arg1, Object arg2) {
+            if (!sampled) {
+                add(format, arg1, arg2);
+                return;
+            }
+            String previous = putPuid();
+            try {
+                logger.info(format, arg1, arg2);
+            } finally {
+                restorePuid(previous);
+            }
+        }
+
+        public void fail(String format, Object arg1, Object arg2) {
+            String previous = putPuid();
+            try {
+                if (!sampled) {
+                    replay();
+                    sampled = true;
+                }
+                logger.error(format, arg1, arg2);
+            } finally {
+                restorePuid(previous);
+            }
+        }
+
+        private void reset(String puid) {
+            clear();
+            this.puid = puid;
+            this.sampled = isSampled(puid);
+        }
+
+        private void add(String format, Object arg1, Object arg2) {
+            int slot = count % BUFFER_SIZE;
+            formats[slot] = format;
+            firstArgs[slot] = arg1;
+            secondArgs[slot] = arg2;
+            count++;
+        }
+
+        private void replay() {
+            int start = Math.max(0, count - BUFFER_SIZE);
+            if (start > 0) {
+                logger.warn("{} earlier steps were dropped from the step buffer", start);
+            }
+            for (int i = start; i < count; i++) {
+                int slot = i % BUFFER_SIZE;
+                logger.warn(formats[slot], firstArgs[slot], secondArgs[slot]);
+            }
+            clear();
+        }
+
+        private void clear() {
+            for (int i = 0; i < Math.min(count, BUFFER_SIZE); i++) {
+                formats[i] = null;
+                firstArgs[i] = null;
+                secondArgs[i] = null;
+            }
+            count = 0;
+        }
+
+        // A stage thread writing for another request's PUID tags the line with it, then restores its own
+        private String putPuid() {
+            String previous = MDC.get(MDC_PUID);
+            if (puid != null && !puid.equals(previous)) {
+                MDC.put(MDC_PUID, puid);
+            }
+            return previous;
+        }
+
+        private void restorePuid(String previous) {
+            if (puid == null || puid.equals(previous)) {
+                return;
+            }
+            if (previous == null) {
+                MDC.remove(MDC_PUID);
+            } else {
+                MDC.put(MDC_PUID, previous);
+            }
+        }
+    }
+}
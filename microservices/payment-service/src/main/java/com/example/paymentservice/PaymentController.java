@@ -2,6 +2,12 @@ package com.example.paymentservice;
 
 import org.springframework.web.bind.annotation.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 @RestController
 @RequestMapping("/payments")
@@ -14,9 +20,27 @@ public class PaymentController {
         this.paymentService = paymentService;
     }
 
+    // Returned as an async result, so in pipeline mode the request thread is released while the payment is in flight
     @PostMapping
-    public String processPayment(@RequestBody PaymentRequest paymentRequest) {
-        paymentService.processPayment(paymentRequest);
-        return "Payment processed successfully!";
+    public CompletableFuture<ResponseEntity<String>> processPayment(@RequestBody PaymentRequest paymentRequest) {
+        return paymentService.processPayment(paymentRequest)
+                .handle((status, error) -> {
+                    if (error != null) {
+                        return failed(error);
+                    }
+                    if ("REJECTED".equals(status)) {
+                        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body("Payment rejected by pre-check");
+                    }
+                    return ResponseEntity.ok("Payment processed successfully!");
+                });
+    }
+
+    // The pipeline cancels a payment it could not finish in time, so the caller may retry it
+    private static ResponseEntity<String> failed(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof TimeoutException) {
+            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).body("Payment not processed in time");
+        }
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Payment processing failed");
     }
 }
@@ -0,0 +1,503 @@
+package com.example.paymentservice;
+
+import com.example.common.StepLogger;
+import com.example.common.StepLogger.StepTrace;
+import com.google.cloud.spanner.Mutation;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Optional pipelined execution of {@link PaymentService#processPayment}.
+ *
+ * The request thread runs the pre-checks, publishes the payment into the save ring and returns
+ * a future of its final status, so no request thread is held while the payment is in flight
+ * (the controller hands the future to Spring MVC as an async result). Four stages, connected by {@link RingBuffer}s, do the rest:
+ * save, gateway, status update and audit. The save and status stages drain whatever is
+ * waiting (up to {@code payment.pipeline.max-batch}) and commit it as one multi-mutation
+ * write, so batches grow with load. The caller is answered once its status update is
+ * committed; its audit entries are written afterwards by the audit stage, best effort as in
+ * the serial path. A payment hops threads, so its step log travels with it as a
+ * {@link StepTrace} and is replayed from whichever stage fails it.
+ *
+ * A payment not answered within {@value #AWAIT_TIMEOUT_SECONDS}s is cancelled: its future fails
+ * with a {@link TimeoutException} and the payment then skips the gateway and ends FAILED.
+ * Once the gateway has been called (or a rejection is being saved) the payment can no longer
+ * be cancelled and its future completes with the committed status instead. On shutdown every
+ * payment still in flight is finished: its status is written where it was saved, and its
+ * caller is answered with that status.
+ */
+@Component
+public class PaymentPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentPipeline.class);
+
+    private static final int SPINS_BEFORE_PARK = 100;
+    // Stages are unparked by the next handoff, the timeout only bounds a missed wake-up
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MIN_FULL_BACKOFF_NANOS = 1_000L;
+    private static final long MAX_FULL_BACKOFF_NANOS = 1_000_000L;
+    private static final long AWAIT_TIMEOUT_SECONDS = 30;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private static final int JOB_PENDING = 0;
+    private static final int JOB_COMMITTING = 1;
+    private static final int JOB_CANCELLED = 2;
+
+    private final MeterRegistry meterRegistry;
+    private final StepLogger stepLogger;
+    private final Set<PaymentJob> inFlight = ConcurrentHashMap.newKeySet();
+    private ExecutorService stageExecutor;
+    private ScheduledThreadPoolExecutor timeoutScheduler;
+    private PaymentService paymentService;
+    private volatile boolean running;
+
+    private RingBuffer<PaymentJob> saveRing;
+    private RingBuffer<PaymentJob> gatewayRing;
+    private RingBuffer<PaymentJob> statusRing;
+    private RingBuffer<AuditEntry> auditRing;
+
+    @Value("${payment.pipeline.enabled:false}")
+    private boolean enabled;
+
+    @Value("${payment.pipeline.ring-size:1024}")
+    private int ringSize;
+
+    @Value("${payment.pipeline.max-batch:64}")
+    private int maxBatch;
+
+    @Value("${payment.pipeline.gateway-threads:4}")
+    private int gatewayThreads;
+
+    public PaymentPipeline(MeterRegistry meterRegistry, StepLogger stepLogger) {
+        this.meterRegistry = meterRegistry;
+        this.stepLogger = stepLogger;
+    }
+
+    // False before start and once stopping, so PaymentService falls back to the serial path
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Called by PaymentService once its Spanner clients exist
+    void start(PaymentService paymentService) {
+        if (!enabled) {
+            return;
+        }
+        this.paymentService = paymentService;
+        saveRing = new RingBuffer<>(ringSize);
+        gatewayRing = new RingBuffer<>(ringSize);
+        statusRing = new RingBuffer<>(ringSize);
+        auditRing = new RingBuffer<>(ringSize);
+
+        running = true;
+        stageExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeoutScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "payment-pipeline-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Most payments finish long before their timeout, so cancelled timeouts must not pile up
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+        startStage("save", saveRing, 1, maxBatch, this::saveBatch);
+        startStage("gateway", gatewayRing, gatewayThreads, 1, this::callGateway);
+        startStage("status", statusRing, 1, maxBatch, this::updateStatusBatch);
+        startStage("audit", auditRing, 1, maxBatch, this::writeAuditBatch);
+        logger.info("Payment pipeline started ringSize={} maxBatch={} gatewayThreads={}",
+                saveRing.capacity(), maxBatch, gatewayThreads);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (RingBuffer<?> ring : Arrays.asList(saveRing, gatewayRing, statusRing, auditRing)) {
+            ring.wakeConsumers();
+        }
+        stageExecutor.shutdown();
+        try {
+            if (!stageExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Payment pipeline stages did not stop within {}s", SHUTDOWN_TIMEOUT_SECONDS);
+                stageExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            stageExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        // Every payment still in flight is answered below
+        timeoutScheduler.shutdownNow();
+
+        // Every payment left in a ring is also in flight and is finished below
+        for (RingBuffer<PaymentJob> ring : Arrays.asList(saveRing, gatewayRing, statusRing)) {
+            ring.drainTo(new ArrayList<>(), Integer.MAX_VALUE);
+        }
+        List<PaymentJob> saved = new ArrayList<>();
+        for (PaymentJob job : new ArrayList<>(inFlight)) {
+            if (job.saved) {
+                // Past the gateway the status is final, before it the payment is failed uncharged
+                if ("PENDING".equals(job.status)) {
+                    job.status = "FAILED";
+                }
+                saved.add(job);
+            } else {
+                job.status = "FAILED";
+                finish(job);
+            }
+        }
+        if (!saved.isEmpty()) {
+            logger.warn("Payment pipeline stopping, writing the status of {} in-flight payments", saved.size());
+            updateStatusBatch(saved);
+        }
+
+        List<AuditEntry> audits = new ArrayList<>();
+        auditRing.drainTo(audits, Integer.MAX_VALUE);
+        if (!audits.isEmpty()) {
+            writeAuditBatch(audits);
+        }
+    }
+
+    public CompletableFuture<String> process(PaymentRequest paymentRequest) {
+        PaymentJob job = new PaymentJob(paymentRequest, stepLogger.trace(paymentRequest.getPuid()));
+        job.trace.step("Processing payment userId={} amount={}", paymentRequest.getUserId(), paymentRequest.getAmount());
+        String rejection = paymentService.runPreChecks(paymentRequest);
+        if (rejection != null) {
+            job.status = "REJECTED";
+            job.rejection = rejection;
+            job.trace.step("Payment rejected by pre-check reason={}", rejection);
+        }
+        inFlight.add(job);
+        if (!publish(saveRing, job)) {
+            job.status = "FAILED";
+            finish(job);
+            return job.result;
+        }
+        try {
+            job.timeout = timeoutScheduler.schedule(() -> timeOut(job), AWAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            // finish() may have run before the timeout was assigned
+            if (job.result.isDone()) {
+                job.timeout.cancel(false);
+            }
+        } catch (RejectedExecutionException e) {
+            // Stopping: the payment is finished by stop() instead
+        }
+        return job.result;
+    }
+
+    // A cancelled payment is failed by the pipeline; one that is already committing is answered when it commits
+    private void timeOut(PaymentJob job) {
+        if (job.result.isDone() || !job.state.compareAndSet(JOB_PENDING, JOB_CANCELLED)) {
+            return;
+        }
+        logger.error("Payment pipeline did not finish puid={} within {}s", job.request.getPuid(), AWAIT_TIMEOUT_SECONDS);
+        job.result.completeExceptionally(new TimeoutException(
+                "Payment " + job.request.getPuid() + " not finished within " + AWAIT_TIMEOUT_SECONDS + "s"));
+    }
+
+    private void saveBatch(List<PaymentJob> batch) {
+        List<PaymentJob> jobs = new ArrayList<>(batch.size());
+        List<Mutation> mutations = new ArrayList<>(batch.size());
+        for (PaymentJob job : batch) {
+            // A rejection is final once it is being saved; a cancelled payment is not saved at all
+            boolean cancelled = "REJECTED".equals(job.status)
+                    ? !job.state.compareAndSet(JOB_PENDING, JOB_COMMITTING)
+                    : job.state.get() == JOB_CANCELLED;
+            if (cancelled) {
+                job.status = "FAILED";
+                job.trace.fail("Payment cancelled by its caller before saving puid={} status={}", job.request.getPuid(), job.status);
+                finish(job);
+                continue;
+            }
+            jobs.add(job);
+            mutations.add(paymentService.buildPaymentMutation(job.request, job.status));
+        }
+        if (jobs.isEmpty()) {
+            return;
+        }
+        commitBatch(jobs, mutations, "save_payment_batch", (job, error) -> {
+            job.saveFailed = true;
+            if ("REJECTED".equals(job.status)) {
+                // The rejection is an insert; a row already stored for the PUID is kept
+                logger.warn("Rejected payment puid={} not saved: {}", job.request.getPuid(), error.getMessage());
+                return;
+            }
+            job.trace.fail("Payment processing failed puid={} error={}", job.request.getPuid(), error.getMessage());
+            job.status = "FAILED";
+        });
+
+        for (PaymentJob job : jobs) {
+            job.saved = !job.saveFailed;
+            if (job.saved) {
+                job.trace.step("Payment saved with status={}", job.status);
+            }
+            if ("REJECTED".equals(job.status)) {
+                audit(job.request.getPuid(), "PRE_CHECK", job.status, "{}", 0, job.rejection);
+                finish(job);
+            } else if ("FAILED".equals(job.status)) {
+                publish(statusRing, job);
+            } else {
+                publish(gatewayRing, job);
+            }
+        }
+    }
+
+    private void callGateway(List<PaymentJob> jobs) {
+        for (PaymentJob job : jobs) {
+            // Once the gateway is called the payment may be charged, so its caller can no longer cancel it
+            if (!job.state.compareAndSet(JOB_PENDING, JOB_COMMITTING)) {
+                job.status = "FAILED";
+                publish(statusRing, job);
+                continue;
+            }
+            boolean success = false;
+            int retryCount = 0;
+            while (retryCount < PaymentService.MAX_RETRIES && !success) {
+                try {
+                    job.trace.step("Calling Payment Service attempt={}", retryCount);
+                    String response = paymentService.invokeGateway(job.request);
+                    job.trace.step("Payment Service response={}", response);
+                    audit(job.request.getPuid(), "PROCESS_PAYMENT", "COMPLETED", response, retryCount, "");
+                    success = true;
+                } catch (Exception e) {
+                    retryCount++;
+                    logger.error("Payment Service failed retryCount={} error={}", retryCount, e.getMessage());
+                    audit(job.request.getPuid(), "PROCESS_PAYMENT", "FAILED", "{}", retryCount, e.getMessage());
+                }
+            }
+            job.status = success ? "COMPLETED" : "FAILED";
+            publish(statusRing, job);
+        }
+    }
+
+    private void updateStatusBatch(List<PaymentJob> jobs) {
+        List<Mutation> mutations = new ArrayList<>(jobs.size());
+        for (PaymentJob job : jobs) {
+            mutations.add(paymentService.buildStatusMutation(job.request.getPuid(), job.status));
+        }
+        // As in the serial path, a failed status update is logged and the caller still gets the status
+        commitBatch(jobs, mutations, "update_payment_status_batch", (job, error) -> {
+            logger.error("Error updating payment status puid={} error={}", job.request.getPuid(), error.getMessage());
+            job.statusWriteFailed = true;
+        });
+
+        for (PaymentJob job : jobs) {
+            if (!job.statusWriteFailed) {
+                job.trace.step("Payment status updated to status={}", job.status);
+                audit(job.request.getPuid(), "UPDATE_STATUS", job.status, "{}", 0, "");
+            }
+            if (!"COMPLETED".equals(job.status)) {
+                job.trace.fail("Payment finished with status={} puid={}", job.status, job.request.getPuid());
+            }
+            finish(job);
+        }
+    }
+
+    private void writeAuditBatch(List<AuditEntry> entries) {
+        List<Mutation> mutations = new ArrayList<>(entries.size());
+        for (AuditEntry entry : entries) {
+            mutations.add(entry.mutation);
+        }
+        try {
+            paymentService.writeAuditTrail(mutations);
+        } catch (Exception e) {
+            logger.error("Error logging audit trail batch of {}: {}", mutations.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Commits all mutations in one write. If that fails, commits them one by one so a single
+     * bad row does not fail the whole batch, and reports each failing job.
+     */
+    private void commitBatch(List<PaymentJob> jobs, List<Mutation> mutations, String operation,
+                            BiConsumer<PaymentJob, Exception> onFailure) {
+        try {
+            paymentService.writePayments(operation, mutations);
+            return;
+        } catch (Exception e) {
+            if (jobs.size() == 1) {
+                onFailure.accept(jobs.get(0), e);
+                return;
+            }
+            logger.warn("Batch {} of {} failed, retrying one by one: {}", operation, jobs.size(), e.getMessage());
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            try {
+                paymentService.writePayments(operation, Collections.singletonList(mutations.get(i)));
+            } catch (Exception e) {
+                onFailure.accept(jobs.get(i), e);
+            }
+        }
+    }
+
+    // Reports the outcome to the pre-checks and answers the caller, once per payment
+    private void finish(PaymentJob job) {
+        if (!inFlight.remove(job)) {
+            return;
+        }
+        ScheduledFuture<?> timeout = job.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        if (job.rejection == null) {
+            paymentService.completePreChecks(job.request, job.status);
+        }
+        // A no-op for a payment whose caller already timed out
+        job.result.complete(job.status);
+    }
+
+    private void audit(String puid, String action, String status, String metadata, int retryCount, String errorDetails) {
+        try {
+            if (!publish(auditRing, new AuditEntry(paymentService.buildAuditMutation(
+                    puid, "PaymentService", action, status, metadata, retryCount, errorDetails)))) {
+                logger.warn("Payment pipeline stopping, audit entry dropped puid={} action={}", puid, action);
+            }
+        } catch (Exception e) {
+            logger.error("Error logging audit trail: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Hands the item to the ring, backing off exponentially while it is full so a slow stage
+     * pushes back on the one before it. Returns false if the pipeline stops before there is
+     * room; a payment left behind that way is finished by {@link #stop}.
+     */
+    private <T extends PipelineItem> boolean publish(RingBuffer<T> ring, T item) {
+        item.enqueuedNanos = System.nanoTime();
+        long backoffNanos = MIN_FULL_BACKOFF_NANOS;
+        while (!ring.offer(item)) {
+            if (!running) {
+                return false;
+            }
+            LockSupport.parkNanos(backoffNanos);
+            backoffNanos = Math.min(backoffNanos * 2, MAX_FULL_BACKOFF_NANOS);
+        }
+        return true;
+    }
+
+    private <T extends PipelineItem> void startStage(String name, RingBuffer<T> input, int threads, int batchLimit,
+                                                     Consumer<List<T>> handler) {
+        Gauge.builder("payment.pipeline.occupancy", input, RingBuffer::size)
+                .description("Items waiting in the ring in front of the stage")
+                .tag("stage", name)
+                .register(meterRegistry);
+        Timer latency = Timer.builder("payment.pipeline.stage.latency")
+                .description("Time from handoff into the stage until the stage finished the item")
+                .tag("stage", name)
+                .register(meterRegistry);
+        DistributionSummary batchSize = DistributionSummary.builder("payment.pipeline.batch")
+                .description("Items handled together by one pass of the stage")
+                .tag("stage", name)
+                .register(meterRegistry);
+
+        for (int i = 0; i < threads; i++) {
+            String threadName = "payment-pipeline-" + name + "-" + i;
+            stageExecutor.execute(() -> {
+                Thread.currentThread().setName(threadName);
+                List<T> batch = new ArrayList<>(batchLimit);
+                long[] enqueuedNanos = new long[batchLimit];
+                int idleSpins = 0;
+                while (running) {
+                    if (input.drainTo(batch, batchLimit) == 0) {
+                        // Spin briefly for the next handoff, then park until an offer wakes the stage
+                        if (++idleSpins < SPINS_BEFORE_PARK) {
+                            Thread.onSpinWait();
+                        } else {
+                            input.awaitElements(IDLE_PARK_NANOS);
+                        }
+                        continue;
+                    }
+                    idleSpins = 0;
+                    // Read before the handler runs, which hands the items to the next ring
+                    for (int item = 0; item < batch.size(); item++) {
+                        enqueuedNanos[item] = batch.get(item).enqueuedNanos;
+                    }
+                    try {
+                        handler.accept(batch);
+                    } catch (Exception e) {
+                        logger.error("Payment pipeline stage {} failed: {}", name, e.getMessage());
+                        failAll(batch);
+                    }
+                    long now = System.nanoTime();
+                    for (int item = 0; item < batch.size(); item++) {
+                        latency.record(now - enqueuedNanos[item], TimeUnit.NANOSECONDS);
+                    }
+                    batchSize.record(batch.size());
+                    batch.clear();
+                }
+            });
+        }
+    }
+
+    private <T extends PipelineItem> void failAll(List<T> batch) {
+        for (T item : batch) {
+            if (item instanceof PaymentJob) {
+                PaymentJob job = (PaymentJob) item;
+                job.status = "FAILED";
+                finish(job);
+            }
+        }
+    }
+
+    private abstract static class PipelineItem {
+        long enqueuedNanos;
+    }
+
+    private static final class PaymentJob extends PipelineItem {
+        final PaymentRequest request;
+        // Handed from stage to stage with the job, so only the stage holding the job writes to it
+        final StepTrace trace;
+        // Completed by finish(), or exceptionally by timeOut(); callbacks on it run on the completing stage thread
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        volatile ScheduledFuture<?> timeout;
+        // JOB_PENDING until the gateway is called or a rejection is saved, or JOB_CANCELLED by its caller
+        final AtomicInteger state = new AtomicInteger(JOB_PENDING);
+        volatile String status = "PENDING";
+        String rejection;
+        volatile boolean saved;
+        boolean saveFailed;
+        boolean statusWriteFailed;
+
+        PaymentJob(PaymentRequest request, StepTrace trace) {
+            this.request = request;
+            this.trace = trace;
+        }
+    }
+
+    private static final class AuditEntry extends PipelineItem {
+        final Mutation mutation;
+
+        AuditEntry(Mutation mutation) {
+            this.mutation = mutation;
+        }
+    }
+}
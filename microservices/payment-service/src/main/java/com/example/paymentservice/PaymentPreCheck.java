@@ -0,0 +1,15 @@
+package com.example.paymentservice;
+
+/**
+ * Check run by {@link PaymentService} before a payment is saved. Every bean implementing
+ * this interface is applied in order; the first rejection stops the payment.
+ */
+public interface PaymentPreCheck {
+
+    // Returns null to let the payment through, otherwise the rejection reason
+    String check(PaymentRequest paymentRequest);
+
+    // Called once with the final status of a payment this check let through
+    default void onOutcome(PaymentRequest paymentRequest, String status) {
+    }
+}
@@ -1,27 +1,42 @@
 package com.example.paymentservice;
 
+import com.example.common.StepLogger;
+import com.example.paymentservice.SpannerWorkloads.WorkloadClass;
 import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ErrorCode;
 import com.google.cloud.spanner.Mutation;
 import com.google.cloud.spanner.Spanner;
+import com.google.cloud.spanner.SpannerException;
 import com.google.cloud.spanner.SpannerOptions;
 import com.google.cloud.spanner.DatabaseId;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 import com.google.cloud.Timestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import javax.annotation.PostConstruct;
 import java.util.Collections;
-import java.util.logging.Logger;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 @Service
 public class PaymentService {
 
-    private static final Logger logger = Logger.getLogger(PaymentService.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(PaymentService.class);
 
     private DatabaseClient spannerClient;
     private DatabaseClient auditSpannerClient;
 
+    private final StepLogger stepLogger;
+    private final SpendVelocityIndex spendVelocityIndex;
+    private final List<PaymentPreCheck> preChecks;
+    private final SpannerWorkloads spannerWorkloads;
+    private final PaymentPipeline paymentPipeline;
+
     @Value("${spanner.project-id}")
     private String spannerProjectId;
 
@@ -34,13 +49,29 @@ public class PaymentService {
     @Value("${audit.db.table}")
     private String auditTrailTable;
 
+    // Off in the AppCDS training run, where no Spanner is reachable
+    @Value("${payment.velocity.rebuild-on-startup:true}")
+    private boolean rebuildVelocityIndex;
+
+    // Payments.Timestamp is a commit-timestamp column, so incremental reconciliation can read rows changed since a watermark
+    private static final Timestamp COMMIT_TIMESTAMP = com.google.cloud.spanner.Value.COMMIT_TIMESTAMP;
+
     // Ensure retry configuration
-    private static final int MAX_RETRIES = 3;
+    static final int MAX_RETRIES = 3;
+
+    public PaymentService(StepLogger stepLogger, SpendVelocityIndex spendVelocityIndex, List<PaymentPreCheck> preChecks,
+                          SpannerWorkloads spannerWorkloads, PaymentPipeline paymentPipeline) {
+        this.stepLogger = stepLogger;
+        this.spendVelocityIndex = spendVelocityIndex;
+        this.preChecks = preChecks;
+        this.spannerWorkloads = spannerWorkloads;
+        this.paymentPipeline = paymentPipeline;
+    }
 
     @PostConstruct
     public void initializeSpannerClient() {
         if (spannerProjectId == null || spannerInstanceId == null || spannerDatabaseName == null) {
-            logger.severe("Spanner configuration is missing! Please check your environment variables or application properties.");
+            logger.error("Spanner configuration is missing! Please check your environment variables or application properties.");
             throw new IllegalStateException("Missing Spanner configuration");
         }
 
@@ -61,16 +92,48 @@ public class PaymentService {
 
             logger.info("Spanner client initialized successfully.");
         } catch (Exception e) {
-            logger.severe("Failed to initialize Spanner client: " + e.getMessage());
+            logger.error("Failed to initialize Spanner client: {}", e.getMessage());
             throw new IllegalStateException("Spanner client initialization failed", e);
         }
+
+        if (rebuildVelocityIndex) {
+            try {
+                spendVelocityIndex.rebuild(spannerClient);
+            } catch (Exception e) {
+                logger.warn("Failed to rebuild spend velocity index, starting empty: {}", e.getMessage());
+            }
+        }
+
+        paymentPipeline.start(this);
+    }
+
+    // The pipeline answers from its stages; the serial path runs on the request thread and is done on return
+    public CompletableFuture<String> processPayment(PaymentRequest paymentRequest) {
+        if (paymentPipeline.isRunning()) {
+            return paymentPipeline.process(paymentRequest);
+        }
+        return CompletableFuture.completedFuture(processSerially(paymentRequest));
     }
 
-    public void processPayment(PaymentRequest paymentRequest) {
+    private String processSerially(PaymentRequest paymentRequest) {
         String status = "PENDING"; // Default status when processing the payment
         int retryCount = 0;  // Initialize retry count
+        stepLogger.begin(paymentRequest.getPuid());
+        stepLogger.step("Processing payment userId={} amount={}", paymentRequest.getUserId(), paymentRequest.getAmount());
+        boolean admitted = false;
 
         try {
+            // Step 0: Run the pre-checks (velocity limits etc.) before anything is written
+            String rejection = runPreChecks(paymentRequest);
+            if (rejection != null) {
+                status = "REJECTED";
+                saveRejection(paymentRequest);
+                logAuditTrail(paymentRequest.getPuid(), "PaymentService", "PRE_CHECK", status, "{}", 0, rejection);
+                stepLogger.step("Payment rejected by pre-check reason={}", rejection);
+                return status;
+            }
+            admitted = true;
+
             // Step 1: Save the payment with PENDING status in the Payments table
             savePayment(paymentRequest, status);
 
@@ -81,25 +144,67 @@ public class PaymentService {
             status = paymentSuccess ? "COMPLETED" : "FAILED";
             updatePaymentStatus(paymentRequest.getPuid(), status);
 
+            if (!paymentSuccess) {
+                stepLogger.fail("Payment finished with status={} puid={}", status, paymentRequest.getPuid());
+            }
+            return status;
         } catch (Exception e) {
-            logger.severe("Payment processing failed for PUID " + paymentRequest.getPuid() + ": " + e.getMessage());
-            updatePaymentStatus(paymentRequest.getPuid(), "FAILED");
+            stepLogger.fail("Payment processing failed puid={} error={}", paymentRequest.getPuid(), e.getMessage());
+            status = "FAILED";
+            updatePaymentStatus(paymentRequest.getPuid(), status);
+            return status;
+        } finally {
+            if (admitted) {
+                completePreChecks(paymentRequest, status);
+            }
+            stepLogger.end();
+        }
+    }
+
+    String runPreChecks(PaymentRequest paymentRequest) {
+        for (int i = 0; i < preChecks.size(); i++) {
+            String rejection = preChecks.get(i).check(paymentRequest);
+            if (rejection != null) {
+                // The checks that already passed may hold a reservation for the payment
+                for (int passed = 0; passed < i; passed++) {
+                    preChecks.get(passed).onOutcome(paymentRequest, "REJECTED");
+                }
+                return rejection;
+            }
+        }
+        return null;
+    }
+
+    // Reports the final status of an admitted payment to every pre-check
+    void completePreChecks(PaymentRequest paymentRequest, String status) {
+        for (PaymentPreCheck preCheck : preChecks) {
+            try {
+                preCheck.onOutcome(paymentRequest, status);
+            } catch (Exception e) {
+                logger.error("Pre-check outcome failed puid={} error={}", paymentRequest.getPuid(), e.getMessage());
+            }
+        }
+    }
+
+    // A rejection only inserts, so it never replaces a payment already stored for the PUID
+    private void saveRejection(PaymentRequest paymentRequest) {
+        try {
+            savePayment(paymentRequest, "REJECTED");
+        } catch (SpannerException e) {
+            if (e.getErrorCode() != ErrorCode.ALREADY_EXISTS) {
+                throw e;
+            }
+            logger.warn("Rejected payment puid={} already exists, keeping the stored row", paymentRequest.getPuid());
         }
     }
 
     private void savePayment(PaymentRequest paymentRequest, String status) {
         try {
-            Mutation mutation = Mutation.newInsertOrUpdateBuilder("Payments")
-                    .set("PaymentUID").to(paymentRequest.getPuid())
-                    .set("UserId").to(paymentRequest.getUserId())
-                    .set("Amount").to(paymentRequest.getAmount())
-                    .set("Status").to(status)
-                    .set("Timestamp").to(Timestamp.now())
-                    .build();
-            spannerClient.write(Collections.singletonList(mutation));
-            logger.info("Payment saved with PUID: " + paymentRequest.getPuid());
+            spannerWorkloads.write(spannerClient, WorkloadClass.TRANSACTION_STATE, "save_payment",
+                    Collections.singletonList(buildPaymentMutation(paymentRequest, status)));
+            stepLogger.step("Payment saved with status={}", status);
         } catch (Exception e) {
-            logger.severe("Error saving payment: " + e.getMessage());
+            logger.error("Error saving payment: {}", e.getMessage());
             throw e;
         }
     }
@@ -108,20 +213,16 @@ public class PaymentService {
         boolean success = false;
         while (retryCount < MAX_RETRIES && !success) {
             try {
-                logger.info("Calling Payment Service...");
-                // Simulate payment service call (use real API call in a production scenario)
-                // ResponseEntity<String> response = restTemplate.postForEntity(paymentServiceUrl + "/payments", paymentRequest, String.class);
-                
-                // For now, assume the response is successful
-                String response = "Payment processed successfully!";
-                logger.info("Payment Service Response: " + response);
+                stepLogger.step("Calling Payment Service attempt={}", retryCount);
+                String response = invokeGateway(paymentRequest);
+                stepLogger.step("Payment Service response={}", response);
 
                 // Log the audit trail with success
                 logAuditTrail(paymentRequest.getPuid(), "PaymentService", "PROCESS_PAYMENT", "COMPLETED", response, retryCount, "");
                 success = true;
             } catch (Exception e) {
                 retryCount++;
-                logger.severe("Payment Service failed. Retry count: " + retryCount + ". Error: " + e.getMessage());
+                logger.error("Payment Service failed retryCount={} error={}", retryCount, e.getMessage());
 
                 // Log failure with retries and error message
                 logAuditTrail(paymentRequest.getPuid(), "PaymentService", "PROCESS_PAYMENT", "FAILED", "{}", retryCount, e.getMessage());
@@ -130,42 +231,107 @@ public class PaymentService {
         return success;
     }
 
+    String invokeGateway(PaymentRequest paymentRequest) {
+        // Simulate payment service call (use real API call in a production scenario)
+        // ResponseEntity<String> response = restTemplate.postForEntity(paymentServiceUrl + "/payments", paymentRequest, String.class);
+
+        // For now, assume the response is successful
+        return "Payment processed successfully!";
+    }
+
+    void writePayments(String operation, List<Mutation> mutations) {
+        spannerWorkloads.write(spannerClient, WorkloadClass.TRANSACTION_STATE, operation, mutations);
+    }
+
+    void writeAuditTrail(List<Mutation> mutations) {
+        spannerWorkloads.write(auditSpannerClient, WorkloadClass.AUDIT, "write_audit_trail", mutations);
+    }
+
     private void updatePaymentStatus(String puid, String status) {
         try {
-            Mutation mutation = Mutation.newUpdateBuilder("Payments")
-                    .set("PaymentUID").to(puid)
-                    .set("Status").to(status)
-                    .build();
-            spannerClient.write(Collections.singletonList(mutation));
-            logger.info("Payment status updated to: " + status);
+            spannerWorkloads.write(spannerClient, WorkloadClass.TRANSACTION_STATE, "update_payment_status",
+                    Collections.singletonList(buildStatusMutation(puid, status)));
+            stepLogger.step("Payment status updated to status={}", status);
 
             // Log the status update in the audit table
             logAuditTrail(puid, "PaymentService", "UPDATE_STATUS", status, "{}", 0, "");
         } catch (Exception e) {
-            logger.severe("Error updating payment status: " + e.getMessage());
+            logger.error("Error updating payment status: {}", e.getMessage());
         }
     }
 
     private void logAuditTrail(String puid, String serviceName, String action, String status, String metadata, int retryCount, String errorDetails) {
         try {
-            // Convert metadata object to JSON string
-            ObjectMapper objectMapper = new ObjectMapper();
-            String metadataJson = objectMapper.writeValueAsString(metadata);
-
-            Mutation mutation = Mutation.newInsertOrUpdateBuilder(auditTrailTable)
-                    .set("PUID").to(puid)
-                    .set("ServiceName").to(serviceName)
-                    .set("Action").to(action)
-                    .set("Status").to(status)
-                    .set("Metadata").to(metadataJson)  // Store any relevant metadata
-                    .set("Timestamp").to(Timestamp.now())
-                    .set("RetryCount").to(retryCount)
-                    .set("ErrorDetails").to(errorDetails)  // Detailed error message if any
-                    .build();
-            auditSpannerClient.write(Collections.singletonList(mutation));
-            logger.info("Audit trail logged for PUID: " + puid + ", Action: " + action + ", Status: " + status);
+            Mutation mutation = buildAuditMutation(puid, serviceName, action, status, metadata, retryCount, errorDetails);
+            writeAuditTrail(Collections.singletonList(mutation));
+            stepLogger.step("Audit trail logged action={} status={}", action, status);
         } catch (Exception e) {
-            logger.severe("Error logging audit trail: " + e.getMessage());
+            logger.error("Error logging audit trail: {}", e.getMessage());
+        }
+    }
+
+    Mutation buildAuditMutation(String puid, String serviceName, String action, String status, String metadata,
+                                int retryCount, String errorDetails) throws JsonProcessingException {
+        // Convert metadata object to JSON string
+        ObjectMapper objectMapper = new ObjectMapper();
+        String metadataJson = objectMapper.writeValueAsString(metadata);
+        return buildAuditTrailMutation(puid, serviceName, action, status, metadataJson, retryCount, errorDetails);
+    }
+
+    Mutation buildPaymentMutation(PaymentRequest paymentRequest, String status) {
+        Mutation.WriteBuilder builder = "REJECTED".equals(status)
+                ? Mutation.newInsertBuilder("Payments")
+                : Mutation.newInsertOrUpdateBuilder("Payments");
+        return builder
+                .set("PaymentUID").to(paymentRequest.getPuid())
+                .set("UserId").to(paymentRequest.getUserId())
+                .set("Amount").to(paymentRequest.getAmount())
+                .set("Status").to(status)
+                .set("Timestamp").to(COMMIT_TIMESTAMP)
+                .build();
+    }
+
+    Mutation buildStatusMutation(String puid, String status) {
+        return Mutation.newUpdateBuilder("Payments")
+                .set("PaymentUID").to(puid)
+                .set("Status").to(status)
+                .set("Timestamp").to(COMMIT_TIMESTAMP)
+                .build();
+    }
+
+    private Mutation buildAuditTrailMutation(String puid, String serviceName, String action, String status, String metadataJson, int retryCount, String errorDetails) {
+        return Mutation.newInsertOrUpdateBuilder(auditTrailTable)
+                .set("PUID").to(puid)
+                .set("ServiceName").to(serviceName)
+                .set("Action").to(action)
+                .set("Status").to(status)
+                .set("Metadata").to(metadataJson)  // Store any relevant metadata
+                .set("Timestamp").to(Timestamp.now())
+                .set("RetryCount").to(retryCount)
+                .set("ErrorDetails").to(errorDetails)  // Detailed error message if any
+                .build();
+    }
+
+    /**
+     * Exercises the JSON/CBOR binding and the mutation builders so the first real
+     * payments do not pay for class loading and JIT compilation.
+     * Nothing is written to Spanner.
+     */
+    public void warmUp(int iterations) throws Exception {
+        ObjectMapper jsonMapper = new ObjectMapper();
+        ObjectMapper cborMapper = new CBORMapper();
+        for (int i = 0; i < iterations; i++) {
+            PaymentRequest sample = new PaymentRequest();
+            sample.setPuid("warmup-" + i);
+            sample.setUserId("warmup-user");
+            sample.setAmount(10.0 + i);
+            jsonMapper.readValue(jsonMapper.writeValueAsBytes(sample), PaymentRequest.class);
+            cborMapper.readValue(cborMapper.writeValueAsBytes(sample), PaymentRequest.class);
+
+            buildPaymentMutation(sample, "PENDING");
+            buildStatusMutation(sample.getPuid(), "COMPLETED");
+            buildAuditTrailMutation(sample.getPuid(), "PaymentService", "PROCESS_PAYMENT", "COMPLETED",
+                    jsonMapper.writeValueAsString("{}"), 0, "");
         }
     }
 }
@@ -1,7 +1,10 @@
 package com.example.paymentservice;
 
+import com.example.common.StepLogger;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
 
 @SpringBootApplication
 public class PaymentServiceApplication {
@@ -9,4 +12,9 @@ public class PaymentServiceApplication {
     public static void main(String[] args) {
         SpringApplication.run(PaymentServiceApplication.class, args);
     }
+
+    @Bean
+    public StepLogger stepLogger(@Value("${logging.step-sampling.percent:1}") int samplePercent) {
+        return new StepLogger("com.example.paymentservice.steps", samplePercent);
+    }
 }
@@ -0,0 +1,137 @@
+package com.example.paymentservice;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring used as the handoff between {@link PaymentPipeline} stages.
+ *
+ * Every slot carries a sequence number that tells producers and consumers whether it is free
+ * or published for the current lap, so any number of threads can publish and consume with
+ * a single CAS on the tail or head and no locks. The capacity is rounded up to a power of two.
+ *
+ * An idle consumer can park in {@link #awaitElements}; the next successful offer unparks one
+ * parked consumer, so idle stages cost no CPU and still pick up a handoff straight away.
+ */
+final class RingBuffer<E> {
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final Queue<Thread> waitingConsumers = new ConcurrentLinkedQueue<>();
+
+    RingBuffer(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity) - 1) << 1;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.slots = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // Returns false when the ring is full
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long lag = sequences.get(index) - position;
+            if (lag == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, element);
+                    sequences.set(index, position + 1);  // publishes the element to consumers
+                    signalConsumer();
+                    return true;
+                }
+                position = tail.get();
+            } else if (lag < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Returns null when the ring is empty
+    E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long lag = sequences.get(index) - (position + 1);
+            if (lag == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, position + mask + 1);  // frees the slot for the next lap
+                    return element;
+                }
+                position = head.get();
+            } else if (lag < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    int drainTo(List<E> batch, int maxElements) {
+        int drained = 0;
+        E element;
+        while (drained < maxElements && (element = poll()) != null) {
+            batch.add(element);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Parks the calling consumer until an element is offered or {@code maxParkNanos} have passed.
+     * The consumer registers before it re-checks for elements, so an offer that lands in between
+     * either is seen by the check or unparks it. Returns early on spurious wake-ups.
+     */
+    void awaitElements(long maxParkNanos) {
+        Thread consumer = Thread.currentThread();
+        waitingConsumers.add(consumer);
+        try {
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, maxParkNanos);
+            }
+        } finally {
+            waitingConsumers.remove(consumer);
+        }
+    }
+
+    // Unparks every parked consumer, e.g. so it notices a shutdown
+    void wakeConsumers() {
+        for (Thread consumer : waitingConsumers) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void signalConsumer() {
+        Thread consumer = waitingConsumers.poll();
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,508 @@
+package com.example.paymentservice;
+
+import com.example.paymentservice.SpannerWorkloads.WorkloadClass;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.Options;
+import com.google.cloud.spanner.ReadOnlyTransaction;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Statement;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * In-memory per-user spend index for velocity checks on the payment path.
+ *
+ * Users are keyed by a 64-bit fingerprint of the userId. The index is split into
+ * {@code payment.velocity.lock-stripes} segments by that key, each with its own lock, so
+ * payments of different users rarely contend. A segment is an open-addressing table built
+ * from primitive arrays: lookups neither box, allocate nor touch Spanner. Each user has a
+ * ring of one-minute buckets covering {@code payment.velocity.window-minutes}; all amounts
+ * are fixed-point minor units (cents). Only users with spend in the window hold a slot:
+ * users whose buckets have all expired are dropped before a segment grows.
+ *
+ * Payments are counted per PUID. {@link #tryReserve} checks the limits and counts the payment
+ * in one step, {@link #commit} keeps it once it completes and {@link #release} takes it out
+ * again if it does not, so retries and hedged duplicates of a PUID are counted once. The
+ * reservations live in the user's segment, in a second primitive table keyed by the 64-bit
+ * fingerprint of the PUID, and are remembered for the length of the window. The index is
+ * rebuilt from the completed Payments of the current window at startup.
+ */
+@Component
+public class SpendVelocityIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpendVelocityIndex.class);
+
+    private static final long EMPTY_KEY = 0L;
+    private static final long MILLIS_PER_MINUTE = 60_000L;
+    private static final int MIN_CAPACITY = 16;
+    // Holder count of a reservation whose payment completed; it is never released
+    private static final int COMMITTED = -1;
+
+    // Must match MOD(FARM_FINGERPRINT(PaymentUID), 16) of Payments.ShardId in changeset 3
+    private static final int SHARD_COUNT = 16;
+
+    @Value("${payment.velocity.window-minutes:15}")
+    private int windowMinutes;
+
+    @Value("${payment.velocity.initial-capacity:16384}")
+    private int initialCapacity;
+
+    @Value("${payment.velocity.lock-stripes:64}")
+    private int stripes;
+
+    private Segment[] segments;
+
+    private final SpannerWorkloads spannerWorkloads;
+
+    public SpendVelocityIndex(SpannerWorkloads spannerWorkloads) {
+        this.spannerWorkloads = spannerWorkloads;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        int segmentCount = powerOfTwoAtLeast(Math.max(1, stripes));
+        int segmentCapacity = powerOfTwoAtLeast(Math.max(MIN_CAPACITY, initialCapacity / segmentCount));
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(windowMinutes, segmentCapacity);
+        }
+    }
+
+    public static long toMinorUnits(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    /**
+     * Counts the payment in the user's window if, with it, the window stays within
+     * {@code maxSpendMinor} and {@code maxCount} (0 disables a limit). Returns null when the
+     * payment is reserved, otherwise the rejection reason. A PUID that is already reserved or
+     * committed passes without being counted again.
+     */
+    public String tryReserve(String userId, String puid, long amountMinor, long nowMillis,
+                             long maxSpendMinor, int maxCount) {
+        long userKey = keyOf(userId);
+        long puidKey = keyOf(puid);
+        Segment segment = segmentOf(userKey);
+        synchronized (segment) {
+            return segment.tryReserve(userKey, puidKey, amountMinor, nowMillis, maxSpendMinor, maxCount);
+        }
+    }
+
+    // Keeps the PUID's reservation, or counts the payment now if it was never reserved
+    public void commit(String userId, String puid, long amountMinor, long nowMillis) {
+        long userKey = keyOf(userId);
+        long puidKey = keyOf(puid);
+        Segment segment = segmentOf(userKey);
+        synchronized (segment) {
+            segment.commit(userKey, puidKey, amountMinor, nowMillis);
+        }
+    }
+
+    // Takes an uncommitted reservation out of the window once no duplicate of the PUID still holds it
+    public void release(String userId, String puid) {
+        long userKey = keyOf(userId);
+        long puidKey = keyOf(puid);
+        Segment segment = segmentOf(userKey);
+        synchronized (segment) {
+            segment.release(userKey, puidKey);
+        }
+    }
+
+    /**
+     * Spend of the user in minor units over the last {@code minutes} one-minute buckets,
+     * the current minute included. Reserved payments count until they are released.
+     */
+    public long spendInLastMinutes(String userId, int minutes, long nowMillis) {
+        if (minutes < 1 || minutes > windowMinutes) {
+            throw new IllegalArgumentException("minutes must be between 1 and " + windowMinutes + ": " + minutes);
+        }
+        long userKey = keyOf(userId);
+        Segment segment = segmentOf(userKey);
+        synchronized (segment) {
+            int slot = segment.findSlot(userKey);
+            return slot < 0 ? 0L : segment.spend(slot, minutes, nowMillis);
+        }
+    }
+
+    /**
+     * Reloads the window from the completed Payments committed within it, read through the
+     * PaymentsByShardTimestamp index one shard at a time. Runs as a low-priority background
+     * scan so it cannot crowd out payments. Called at startup, before payments are taken.
+     */
+    public void rebuild(DatabaseClient spannerClient) {
+        long now = System.currentTimeMillis();
+        Timestamp since = Timestamp.ofTimeMicroseconds((now - windowMinutes * MILLIS_PER_MINUTE) * 1000);
+
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        int payments = spannerWorkloads.run(WorkloadClass.BACKGROUND_SCAN, "rebuild_velocity_index", () -> {
+            Options.QueryOption[] options = spannerWorkloads.queryOptions(WorkloadClass.BACKGROUND_SCAN, "rebuild_velocity_index");
+            int loaded = 0;
+            try (ReadOnlyTransaction snapshot = spannerClient.readOnlyTransaction()) {
+                for (int shard = 0; shard < SHARD_COUNT; shard++) {
+                    Statement windowQuery = Statement.newBuilder(
+                                    "SELECT PaymentUID, UserId, Amount, Timestamp FROM Payments@{FORCE_INDEX=PaymentsByShardTimestamp}"
+                                            + " WHERE ShardId = @shard AND Timestamp >= @since AND Status = 'COMPLETED'")
+                            .bind("shard").to(shard)
+                            .bind("since").to(since)
+                            .build();
+                    try (ResultSet resultSet = snapshot.executeQuery(windowQuery, options)) {
+                        while (resultSet.next()) {
+                            Timestamp timestamp = resultSet.getTimestamp("Timestamp");
+                            long epochMillis = timestamp.getSeconds() * 1000 + timestamp.getNanos() / 1_000_000;
+                            commit(resultSet.getString("UserId"), resultSet.getString("PaymentUID"),
+                                    toMinorUnits(resultSet.getDouble("Amount")), epochMillis);
+                            loaded++;
+                        }
+                    }
+                }
+            }
+            return loaded;
+        });
+        logger.info("Spend velocity index rebuilt with users={} payments={}", size(), payments);
+    }
+
+    // Users holding a slot, across all segments
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    // User slots allocated, across all segments
+    int capacity() {
+        int capacity = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                capacity += segment.keys.length;
+            }
+        }
+        return capacity;
+    }
+
+    private Segment segmentOf(long userKey) {
+        // Bits the in-segment slot hash barely uses, so the segments stay evenly filled
+        return segments[(int) (userKey >>> 40) & (segments.length - 1)];
+    }
+
+    private static long keyOf(String value) {
+        long key = Hashing.farmHashFingerprint64().hashString(value, StandardCharsets.UTF_8).asLong();
+        return key == EMPTY_KEY ? 1L : key;
+    }
+
+    private static int home(long key, int mask) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    private static int powerOfTwoAtLeast(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * One lock stripe: the users whose key maps to it and the reservations of their payments.
+     * Every method is called with the segment's monitor held.
+     */
+    private static final class Segment {
+        private final int windowMinutes;
+
+        private long[] keys;
+        // windowMinutes buckets per user, starting at slot * windowMinutes
+        private long[] bucketMinutes;
+        private long[] bucketSums;
+        private int[] bucketCounts;
+        private int size;
+
+        // Reservations by PUID fingerprint: amount and time counted, holders or COMMITTED
+        private long[] puidKeys;
+        private long[] reservedMinor;
+        private long[] reservedMillis;
+        private int[] holders;
+        private int reservationCount;
+
+        Segment(int windowMinutes, int capacity) {
+            this.windowMinutes = windowMinutes;
+            allocateUsers(capacity);
+            allocateReservations(capacity);
+        }
+
+        String tryReserve(long userKey, long puidKey, long amountMinor, long nowMillis, long maxSpendMinor, int maxCount) {
+            int reservation = findLiveReservation(puidKey, nowMillis);
+            if (reservation >= 0) {
+                if (holders[reservation] != COMMITTED) {
+                    holders[reservation]++;
+                }
+                return null;
+            }
+            int slot = findSlot(userKey);
+            long spent = slot < 0 ? 0L : spend(slot, windowMinutes, nowMillis);
+            int count = slot < 0 ? 0 : count(slot, nowMillis);
+            if (maxSpendMinor > 0 && spent + amountMinor > maxSpendMinor) {
+                return "VELOCITY_SPEND_LIMIT";
+            }
+            if (maxCount > 0 && count >= maxCount) {
+                return "VELOCITY_COUNT_LIMIT";
+            }
+            addToWindow(slotFor(userKey, nowMillis), amountMinor, nowMillis);
+            putReservation(puidKey, amountMinor, nowMillis, 1, nowMillis);
+            return null;
+        }
+
+        void commit(long userKey, long puidKey, long amountMinor, long nowMillis) {
+            int reservation = findLiveReservation(puidKey, nowMillis);
+            if (reservation >= 0) {
+                holders[reservation] = COMMITTED;
+                return;
+            }
+            addToWindow(slotFor(userKey, nowMillis), amountMinor, nowMillis);
+            putReservation(puidKey, amountMinor, nowMillis, COMMITTED, nowMillis);
+        }
+
+        void release(long userKey, long puidKey) {
+            int reservation = findReservation(puidKey);
+            if (reservation < 0 || holders[reservation] == COMMITTED || --holders[reservation] > 0) {
+                return;
+            }
+            long amountMinor = reservedMinor[reservation];
+            long epochMillis = reservedMillis[reservation];
+            removeReservation(reservation);
+            int slot = findSlot(userKey);
+            if (slot >= 0) {
+                removeFromWindow(slot, amountMinor, epochMillis);
+            }
+        }
+
+        void clear() {
+            allocateUsers(keys.length);
+            allocateReservations(puidKeys.length);
+        }
+
+        long spend(int slot, int minutes, long nowMillis) {
+            long nowMinute = nowMillis / MILLIS_PER_MINUTE;
+            long oldestMinute = nowMinute - minutes;
+            long sum = 0L;
+            for (int i = slot * windowMinutes, end = i + windowMinutes; i < end; i++) {
+                if (bucketMinutes[i] > oldestMinute && bucketMinutes[i] <= nowMinute) {
+                    sum += bucketSums[i];
+                }
+            }
+            return sum;
+        }
+
+        private int count(int slot, long nowMillis) {
+            long nowMinute = nowMillis / MILLIS_PER_MINUTE;
+            long oldestMinute = nowMinute - windowMinutes;
+            int count = 0;
+            for (int i = slot * windowMinutes, end = i + windowMinutes; i < end; i++) {
+                if (bucketMinutes[i] > oldestMinute && bucketMinutes[i] <= nowMinute) {
+                    count += bucketCounts[i];
+                }
+            }
+            return count;
+        }
+
+        private void addToWindow(int slot, long amountMinor, long epochMillis) {
+            long minute = epochMillis / MILLIS_PER_MINUTE;
+            int bucket = slot * windowMinutes + (int) (minute % windowMinutes);
+            if (bucketMinutes[bucket] > minute) {
+                return;  // the bucket already holds a later minute, so this event is outside the window
+            }
+            if (bucketMinutes[bucket] != minute) {
+                bucketMinutes[bucket] = minute;
+                bucketSums[bucket] = 0L;
+                bucketCounts[bucket] = 0;
+            }
+            bucketSums[bucket] += amountMinor;
+            bucketCounts[bucket]++;
+        }
+
+        private void removeFromWindow(int slot, long amountMinor, long epochMillis) {
+            long minute = epochMillis / MILLIS_PER_MINUTE;
+            int bucket = slot * windowMinutes + (int) (minute % windowMinutes);
+            if (bucketMinutes[bucket] == minute) {
+                bucketSums[bucket] -= amountMinor;
+                bucketCounts[bucket]--;
+            }
+        }
+
+        // Returns the slot holding the key, or -(insertion slot) - 1 if it is absent
+        int findSlot(long key) {
+            int mask = keys.length - 1;
+            int slot = home(key, mask);
+            while (true) {
+                long current = keys[slot];
+                if (current == key) {
+                    return slot;
+                }
+                if (current == EMPTY_KEY) {
+                    return -slot - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private int slotFor(long key, long nowMillis) {
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                return slot;
+            }
+            if ((size + 1) * 4L > keys.length * 3L) {
+                // Drop users with nothing left in the window, and grow only if that does not free enough
+                rehashUsers(keys.length, nowMillis);
+                if ((size + 1) * 2L > keys.length) {
+                    rehashUsers(keys.length * 2, nowMillis);
+                }
+                slot = findSlot(key);
+            }
+            slot = -slot - 1;
+            keys[slot] = key;
+            size++;
+            return slot;
+        }
+
+        private void rehashUsers(int capacity, long nowMillis) {
+            long[] oldKeys = keys;
+            long[] oldBucketMinutes = bucketMinutes;
+            long[] oldBucketSums = bucketSums;
+            int[] oldBucketCounts = bucketCounts;
+            long oldestMinute = nowMillis / MILLIS_PER_MINUTE - windowMinutes;
+
+            allocateUsers(capacity);
+            for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+                if (oldKeys[oldSlot] == EMPTY_KEY || !hasMinuteAfter(oldBucketMinutes, oldSlot, oldestMinute)) {
+                    continue;
+                }
+                int slot = -findSlot(oldKeys[oldSlot]) - 1;
+                keys[slot] = oldKeys[oldSlot];
+                System.arraycopy(oldBucketMinutes, oldSlot * windowMinutes, bucketMinutes, slot * windowMinutes, windowMinutes);
+                System.arraycopy(oldBucketSums, oldSlot * windowMinutes, bucketSums, slot * windowMinutes, windowMinutes);
+                System.arraycopy(oldBucketCounts, oldSlot * windowMinutes, bucketCounts, slot * windowMinutes, windowMinutes);
+                size++;
+            }
+        }
+
+        private boolean hasMinuteAfter(long[] minutes, int slot, long oldestMinute) {
+            for (int i = slot * windowMinutes, end = i + windowMinutes; i < end; i++) {
+                if (minutes[i] > oldestMinute) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void allocateUsers(int capacity) {
+            keys = new long[capacity];
+            bucketMinutes = new long[capacity * windowMinutes];
+            bucketSums = new long[capacity * windowMinutes];
+            bucketCounts = new int[capacity * windowMinutes];
+            size = 0;
+        }
+
+        // Like findReservation, but a reservation older than the window is dropped and reported absent
+        private int findLiveReservation(long puidKey, long nowMillis) {
+            int reservation = findReservation(puidKey);
+            if (reservation >= 0 && isExpired(reservation, nowMillis)) {
+                removeReservation(reservation);
+                return -1;
+            }
+            return reservation;
+        }
+
+        private int findReservation(long puidKey) {
+            int mask = puidKeys.length - 1;
+            int slot = home(puidKey, mask);
+            while (true) {
+                long current = puidKeys[slot];
+                if (current == puidKey) {
+                    return slot;
+                }
+                if (current == EMPTY_KEY) {
+                    return -slot - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void putReservation(long puidKey, long amountMinor, long epochMillis, int holderCount, long nowMillis) {
+            if ((reservationCount + 1) * 4L > puidKeys.length * 3L) {
+                // Same policy as the users: drop expired reservations, grow only if that does not free enough
+                rehashReservations(puidKeys.length, nowMillis);
+                if ((reservationCount + 1) * 2L > puidKeys.length) {
+                    rehashReservations(puidKeys.length * 2, nowMillis);
+                }
+            }
+            int slot = -findReservation(puidKey) - 1;
+            puidKeys[slot] = puidKey;
+            reservedMinor[slot] = amountMinor;
+            reservedMillis[slot] = epochMillis;
+            holders[slot] = holderCount;
+            reservationCount++;
+        }
+
+        // Backward-shift deletion, so linear probing needs no tombstones
+        private void removeReservation(int slot) {
+            int mask = puidKeys.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (puidKeys[next] != EMPTY_KEY) {
+                // An entry can fill the hole if the hole lies between its home slot and where it sits now
+                if (((next - home(puidKeys[next], mask)) & mask) >= ((next - hole) & mask)) {
+                    puidKeys[hole] = puidKeys[next];
+                    reservedMinor[hole] = reservedMinor[next];
+                    reservedMillis[hole] = reservedMillis[next];
+                    holders[hole] = holders[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            puidKeys[hole] = EMPTY_KEY;
+            reservationCount--;
+        }
+
+        private void rehashReservations(int capacity, long nowMillis) {
+            long[] oldPuidKeys = puidKeys;
+            long[] oldReservedMinor = reservedMinor;
+            long[] oldReservedMillis = reservedMillis;
+            int[] oldHolders = holders;
+            long oldestMillis = nowMillis - windowMinutes * MILLIS_PER_MINUTE;
+
+            allocateReservations(capacity);
+            for (int oldSlot = 0; oldSlot < oldPuidKeys.length; oldSlot++) {
+                if (oldPuidKeys[oldSlot] == EMPTY_KEY || oldReservedMillis[oldSlot] < oldestMillis) {
+                    continue;
+                }
+                int slot = -findReservation(oldPuidKeys[oldSlot]) - 1;
+                puidKeys[slot] = oldPuidKeys[oldSlot];
+                reservedMinor[slot] = oldReservedMinor[oldSlot];
+                reservedMillis[slot] = oldReservedMillis[oldSlot];
+                holders[slot] = oldHolders[oldSlot];
+                reservationCount++;
+            }
+        }
+
+        private boolean isExpired(int reservation, long nowMillis) {
+            return reservedMillis[reservation] < nowMillis - windowMinutes * MILLIS_PER_MINUTE;
+        }
+
+        private void allocateReservations(int capacity) {
+            puidKeys = new long[capacity];
+            reservedMinor = new long[capacity];
+            reservedMillis = new long[capacity];
+            holders = new int[capacity];
+            reservationCount = 0;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.paymentservice;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// Rejects payments that would take a user over the configured spend or count in the velocity window
+@Component
+public class VelocityLimitPreCheck implements PaymentPreCheck {
+
+    private final SpendVelocityIndex spendVelocityIndex;
+
+    // Limits in major units / payments per window, 0 disables the limit
+    @Value("${payment.velocity.max-spend:0}")
+    private double maxSpend;
+
+    @Value("${payment.velocity.max-count:0}")
+    private int maxCount;
+
+    public VelocityLimitPreCheck(SpendVelocityIndex spendVelocityIndex) {
+        this.spendVelocityIndex = spendVelocityIndex;
+    }
+
+    // Checks and reserves in one step, so concurrent payments of a user cannot share the same headroom
+    @Override
+    public String check(PaymentRequest paymentRequest) {
+        if (paymentRequest.getUserId() == null) {
+            return null;
+        }
+        return spendVelocityIndex.tryReserve(paymentRequest.getUserId(), paymentRequest.getPuid(),
+                SpendVelocityIndex.toMinorUnits(paymentRequest.getAmount()), System.currentTimeMillis(),
+                SpendVelocityIndex.toMinorUnits(maxSpend), maxCount);
+    }
+
+    @Override
+    public void onOutcome(PaymentRequest paymentRequest, String status) {
+        if (paymentRequest.getUserId() == null) {
+            return;
+        }
+        if ("COMPLETED".equals(status)) {
+            spendVelocityIndex.commit(paymentRequest.getUserId(), paymentRequest.getPuid(),
+                    SpendVelocityIndex.toMinorUnits(paymentRequest.getAmount()), System.currentTimeMillis());
+        } else {
+            spendVelocityIndex.release(paymentRequest.getUserId(), paymentRequest.getPuid());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.paymentservice;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SpendVelocityIndexTest {
+
+    private static final long NOW = 1_700_000_000_000L;
+    private static final long MINUTE = 60_000L;
+
+    private SpendVelocityIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = newIndex(4);
+    }
+
+    @Test
+    void reservationsCountAgainstTheSpendLimit() {
+        assertNull(index.tryReserve("alice", "p1", 600, NOW, 1000, 0));
+        assertEquals("VELOCITY_SPEND_LIMIT", index.tryReserve("alice", "p2", 600, NOW, 1000, 0));
+        assertNull(index.tryReserve("bob", "p3", 600, NOW, 1000, 0));
+    }
+
+    @Test
+    void duplicatePuidIsCountedOnce() {
+        assertNull(index.tryReserve("alice", "p1", 600, NOW, 1000, 0));
+        assertNull(index.tryReserve("alice", "p1", 600, NOW, 1000, 0));
+        index.commit("alice", "p1", 600, NOW);
+        index.commit("alice", "p1", 600, NOW);
+        assertNull(index.tryReserve("alice", "p2", 400, NOW, 1000, 0));
+    }
+
+    @Test
+    void releaseFreesTheReservationOnceNoDuplicateHoldsIt() {
+        assertNull(index.tryReserve("alice", "p1", 600, NOW, 1000, 0));
+        assertNull(index.tryReserve("alice", "p1", 600, NOW, 1000, 0));
+        index.release("alice", "p1");
+        assertEquals("VELOCITY_SPEND_LIMIT", index.tryReserve("alice", "p2", 600, NOW, 1000, 0));
+        index.release("alice", "p1");
+        assertNull(index.tryReserve("alice", "p2", 600, NOW, 1000, 0));
+    }
+
+    @Test
+    void committedPaymentIsNotReleased() {
+        assertNull(index.tryReserve("alice", "p1", 1, NOW, 0, 1));
+        index.commit("alice", "p1", 1, NOW);
+        index.release("alice", "p1");
+        assertEquals("VELOCITY_COUNT_LIMIT", index.tryReserve("alice", "p2", 1, NOW, 0, 1));
+    }
+
+    @Test
+    void spendLeavesTheWindow() {
+        index.commit("alice", "p1", 1000, NOW);
+        assertEquals("VELOCITY_SPEND_LIMIT", index.tryReserve("alice", "p2", 1, NOW + 14 * MINUTE, 1000, 0));
+        assertNull(index.tryReserve("alice", "p2", 1, NOW + 16 * MINUTE, 1000, 0));
+    }
+
+    @Test
+    void spendInLastMinutesSumsTheNewestBuckets() {
+        index.commit("alice", "p1", 100, NOW - 10 * MINUTE);
+        index.commit("alice", "p2", 20, NOW - 2 * MINUTE);
+        index.commit("alice", "p3", 3, NOW);
+        assertEquals(3, index.spendInLastMinutes("alice", 1, NOW));
+        assertEquals(23, index.spendInLastMinutes("alice", 3, NOW));
+        assertEquals(123, index.spendInLastMinutes("alice", 15, NOW));
+        assertEquals(0, index.spendInLastMinutes("bob", 15, NOW));
+        assertThrows(IllegalArgumentException.class, () -> index.spendInLastMinutes("alice", 16, NOW));
+    }
+
+    @Test
+    void releasedReservationsKeepTheOthersReachable() {
+        // Enough PUIDs to collide in the reservation table, then release every other one
+        for (int i = 0; i < 200; i++) {
+            assertNull(index.tryReserve("alice", "p" + i, 1, NOW, 0, 0));
+        }
+        for (int i = 0; i < 200; i += 2) {
+            index.release("alice", "p" + i);
+        }
+        assertEquals(100, index.spendInLastMinutes("alice", 1, NOW));
+        for (int i = 1; i < 200; i += 2) {
+            // Still reserved, so a duplicate is not counted again
+            assertNull(index.tryReserve("alice", "p" + i, 1, NOW, 0, 0));
+        }
+        assertEquals(100, index.spendInLastMinutes("alice", 1, NOW));
+    }
+
+    @Test
+    void expiredUsersMakeRoomBeforeTheTableGrows() {
+        // One stripe so every user lands in the same table
+        index = newIndex(1);
+        for (int user = 0; user < 100; user++) {
+            index.commit("old-" + user, "old-" + user, 100, NOW);
+        }
+        int capacity = index.capacity();
+
+        // Filling the table with users active 30 minutes later drops the expired ones instead of growing it
+        long later = NOW + 30 * MINUTE;
+        for (int user = 0; user < 100; user++) {
+            index.commit("new-" + user, "new-" + user, 100, later);
+        }
+        assertEquals(capacity, index.capacity());
+        assertEquals(100, index.size());
+        assertNull(index.tryReserve("old-1", "p", 1000, later, 1000, 0));
+    }
+
+    private static SpendVelocityIndex newIndex(int stripes) {
+        SpendVelocityIndex index = new SpendVelocityIndex(null);
+        ReflectionTestUtils.setField(index, "windowMinutes", 15);
+        ReflectionTestUtils.setField(index, "initialCapacity", 16);
+        ReflectionTestUtils.setField(index, "stripes", stripes);
+        index.initialize();
+        return index;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.reconciliationservice;
+
+/**
+ * Amounts are stored as FLOAT64, so the reconcilers compare and fingerprint them in minor units.
+ * Both IncrementalReconciler and ConsistencyChecker go through here so they agree on every amount.
+ */
+final class Amounts {
+
+    private Amounts() {
+    }
+
+    // Spanner ROUND rounds halfway cases away from zero, Math.round rounds them up
+    static long minorUnits(double amount) {
+        long rounded = Math.round(Math.abs(amount * 100));
+        return amount < 0 ? -rounded : rounded;
+    }
+}
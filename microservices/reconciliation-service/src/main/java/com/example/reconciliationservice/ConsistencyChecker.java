@@ -0,0 +1,267 @@
+package com.example.reconciliationservice;
+
+import com.example.reconciliationservice.SpannerWorkloads.WorkloadClass;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.Options;
+import com.google.cloud.spanner.ReadOnlyTransaction;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.SpannerException;
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Struct;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Digest-based consistency check of Transactions against Payments on (PUID, amount, status).
+ *
+ * Both tables are viewed as a prefix tree over the PUID: a node's digest is the XOR of
+ * FARM_FINGERPRINT over its rows, so a parent digest is the XOR of its children. The check
+ * asks for the child digests of a prefix in one GROUP BY query per table, and only descends
+ * into children whose digest or row count differ. Rows are fetched only for differing
+ * subtrees with at most {@code reconciliation.digest.leaf-rows} rows, so the bytes shipped
+ * grow with the number of differences instead of the table size.
+ *
+ * Differing rows are classified with {@link IncrementalReconciler#findPaymentMismatch}, so
+ * in-flight and rejected payments are not reported, and written to ReconciliationMismatch in
+ * batches of at most {@value #MISMATCH_WRITE_BATCH} rows.
+ */
+@Component
+public class ConsistencyChecker {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsistencyChecker.class);
+
+    private static final int MAX_SAMPLE_MISMATCHES = 100;
+    private static final String OPERATION = "digest_consistency_check";
+    static final int MISMATCH_WRITE_BATCH = 1000;
+
+    // FARM_FINGERPRINT of "key|amountInMinorUnits|status"; fingerprint() computes the same value in Java
+    static final String ROW_FINGERPRINT_SQL =
+            "FARM_FINGERPRINT(CONCAT(%s, '|', CAST(CAST(ROUND(Amount * 100) AS INT64) AS STRING), '|', Status))";
+
+    private final ReconciliationService reconciliationService;
+    private final SpannerWorkloads spannerWorkloads;
+
+    @Value("${reconciliation.digest.leaf-rows:64}")
+    private int leafRows;
+
+    // Compute digests with BIT_XOR/FARM_FINGERPRINT in Spanner; false streams the rows and hashes them here
+    @Value("${reconciliation.digest.server-side:true}")
+    private boolean serverSide;
+
+    @Value("${reconciliation.incremental.pending-timeout-seconds:300}")
+    private long pendingTimeoutSeconds;
+
+    public ConsistencyChecker(ReconciliationService reconciliationService, SpannerWorkloads spannerWorkloads) {
+        this.reconciliationService = reconciliationService;
+        this.spannerWorkloads = spannerWorkloads;
+    }
+
+    public ConsistencyReport checkTransactionsAgainstPayments() {
+        return spannerWorkloads.run(WorkloadClass.BACKGROUND_SCAN, OPERATION, this::runCheck);
+    }
+
+    private ConsistencyReport runCheck() {
+        DatabaseClient client = reconciliationService.getSpannerClient();
+        ConsistencyReport report = new ConsistencyReport();
+        List<Mutation> mismatches = new ArrayList<>();
+
+        // One read-only transaction, so both tables are compared at the same timestamp
+        try (ReadOnlyTransaction snapshot = client.readOnlyTransaction()) {
+            Deque<String> pending = new ArrayDeque<>();
+            pending.push("");
+            while (!pending.isEmpty()) {
+                String prefix = pending.pop();
+                Map<String, BucketDigest> transactions = childDigests(snapshot, "Transactions", "PUID", prefix, report);
+                Map<String, BucketDigest> payments = childDigests(snapshot, "Payments", "PaymentUID", prefix, report);
+
+                TreeSet<String> buckets = new TreeSet<>(transactions.keySet());
+                buckets.addAll(payments.keySet());
+                for (String bucket : buckets) {
+                    BucketDigest left = transactions.getOrDefault(bucket, BucketDigest.EMPTY);
+                    BucketDigest right = payments.getOrDefault(bucket, BucketDigest.EMPTY);
+                    if (left.equals(right)) {
+                        continue;
+                    }
+                    boolean exactKey = bucket.length() <= prefix.length();
+                    if (exactKey || Math.max(left.rowCount, right.rowCount) <= leafRows) {
+                        compareRows(snapshot, bucket, exactKey, report, mismatches);
+                        if (mismatches.size() >= MISMATCH_WRITE_BATCH) {
+                            writeMismatches(client, mismatches);
+                        }
+                    } else {
+                        pending.push(bucket);
+                    }
+                }
+            }
+        }
+
+        writeMismatches(client, mismatches);
+        logger.info("Digest consistency check finished: {}", report);
+        return report;
+    }
+
+    // Writes and clears the buffered mismatches, at most MISMATCH_WRITE_BATCH per commit
+    private void writeMismatches(DatabaseClient client, List<Mutation> mismatches) {
+        for (int from = 0; from < mismatches.size(); from += MISMATCH_WRITE_BATCH) {
+            int to = Math.min(from + MISMATCH_WRITE_BATCH, mismatches.size());
+            spannerWorkloads.write(client, WorkloadClass.BACKGROUND_SCAN, OPERATION, new ArrayList<>(mismatches.subList(from, to)));
+        }
+        mismatches.clear();
+    }
+
+    private Map<String, BucketDigest> childDigests(ReadOnlyTransaction snapshot, String table, String keyColumn,
+                                                   String prefix, ConsistencyReport report) {
+        report.setDigestQueries(report.getDigestQueries() + 1);
+        if (serverSide) {
+            try {
+                return serverDigests(snapshot, table, keyColumn, prefix);
+            } catch (SpannerException e) {
+                logger.warn("Server-side digest failed for {}, falling back to client-side: {}", table, e.getMessage());
+            }
+        }
+        return clientDigests(snapshot, table, keyColumn, prefix, report);
+    }
+
+    private Map<String, BucketDigest> serverDigests(ReadOnlyTransaction snapshot, String table, String keyColumn, String prefix) {
+        String sql = "SELECT SUBSTR(" + keyColumn + ", 1, @depth) AS bucket,"
+                + " BIT_XOR(" + String.format(ROW_FINGERPRINT_SQL, keyColumn) + ") AS digest,"
+                + " COUNT(*) AS row_count"
+                + " FROM " + table
+                + " WHERE STARTS_WITH(" + keyColumn + ", @prefix)"
+                + " GROUP BY bucket";
+        Statement statement = Statement.newBuilder(sql)
+                .bind("depth").to(prefix.length() + 1)
+                .bind("prefix").to(prefix)
+                .build();
+        Map<String, BucketDigest> digests = new HashMap<>();
+        try (ResultSet resultSet = snapshot.executeQuery(statement, queryOptions())) {
+            while (resultSet.next()) {
+                digests.put(resultSet.getString("bucket"),
+                        new BucketDigest(resultSet.getLong("digest"), resultSet.getLong("row_count")));
+            }
+        }
+        return digests;
+    }
+
+    private Map<String, BucketDigest> clientDigests(ReadOnlyTransaction snapshot, String table, String keyColumn,
+                                                    String prefix, ConsistencyReport report) {
+        int depth = prefix.length() + 1;
+        Map<String, BucketDigest> digests = new HashMap<>();
+        try (ResultSet resultSet = snapshot.executeQuery(rowsStatement(table, keyColumn, prefix, false), queryOptions())) {
+            while (resultSet.next()) {
+                String key = resultSet.getString(0);
+                String bucket = key.substring(0, Math.min(key.length(), depth));
+                long fingerprint = fingerprint(key, resultSet.getDouble(1), resultSet.getString(2));
+                digests.merge(bucket, new BucketDigest(fingerprint, 1), BucketDigest::combine);
+                report.setRowsFetched(report.getRowsFetched() + 1);
+            }
+        }
+        return digests;
+    }
+
+    private void compareRows(ReadOnlyTransaction snapshot, String key, boolean exactKey,
+                             ConsistencyReport report, List<Mutation> mismatches) {
+        Map<String, Struct> transactions = fetchRows(snapshot, "Transactions", "PUID", key, exactKey, report);
+        Map<String, Struct> payments = fetchRows(snapshot, "Payments", "PaymentUID", key, exactKey, report);
+        Timestamp pendingCutoff = IncrementalReconciler.minusSeconds(snapshot.getReadTimestamp(), pendingTimeoutSeconds);
+
+        TreeSet<String> puids = new TreeSet<>(transactions.keySet());
+        puids.addAll(payments.keySet());
+        for (String puid : puids) {
+            Struct transaction = transactions.get(puid);
+            Struct payment = payments.get(puid);
+            // Digests differ on any field, but only the status combinations findMismatch rejects are mismatches
+            String reason = IncrementalReconciler.findPaymentMismatch(transaction, payment, pendingCutoff);
+            if (reason == null) {
+                continue;
+            }
+            report.setMismatchCount(report.getMismatchCount() + 1);
+            if (report.getSampleMismatches().size() < MAX_SAMPLE_MISMATCHES) {
+                report.getSampleMismatches().add(puid + ":" + reason);
+            }
+            mismatches.add(Mutation.newInsertOrUpdateBuilder(IncrementalReconciler.MISMATCH_TABLE)
+                    .set("PUID").to(puid)
+                    .set("Reason").to(reason)
+                    .set("Details").to("transaction=" + describe(transaction) + " payment=" + describe(payment))
+                    .set("DetectedAt").to(com.google.cloud.spanner.Value.COMMIT_TIMESTAMP)
+                    .build());
+        }
+    }
+
+    private Map<String, Struct> fetchRows(ReadOnlyTransaction snapshot, String table, String keyColumn, String key,
+                                          boolean exactKey, ConsistencyReport report) {
+        Map<String, Struct> rows = new HashMap<>();
+        try (ResultSet resultSet = snapshot.executeQuery(rowsStatement(table, keyColumn, key, exactKey), queryOptions())) {
+            while (resultSet.next()) {
+                rows.put(resultSet.getString(0), resultSet.getCurrentRowAsStruct());
+                report.setRowsFetched(report.getRowsFetched() + 1);
+            }
+        }
+        return rows;
+    }
+
+    private static String describe(Struct row) {
+        return row == null ? "missing" : Amounts.minorUnits(row.getDouble("Amount")) + "/" + row.getString("Status");
+    }
+
+    private Statement rowsStatement(String table, String keyColumn, String key, boolean exactKey) {
+        String filter = exactKey ? keyColumn + " = @key" : "STARTS_WITH(" + keyColumn + ", @key)";
+        return Statement.newBuilder("SELECT " + keyColumn + ", Amount, Status, Timestamp FROM " + table + " WHERE " + filter)
+                .bind("key").to(key)
+                .build();
+    }
+
+    private Options.QueryOption[] queryOptions() {
+        return spannerWorkloads.queryOptions(WorkloadClass.BACKGROUND_SCAN, OPERATION);
+    }
+
+    // Same value as ROW_FINGERPRINT_SQL in Spanner
+    static long fingerprint(String key, double amount, String status) {
+        String row = key + "|" + Amounts.minorUnits(amount) + "|" + status;
+        return Hashing.farmHashFingerprint64().hashString(row, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static final class BucketDigest {
+        static final BucketDigest EMPTY = new BucketDigest(0L, 0L);
+
+        final long digest;
+        final long rowCount;
+
+        BucketDigest(long digest, long rowCount) {
+            this.digest = digest;
+            this.rowCount = rowCount;
+        }
+
+        static BucketDigest combine(BucketDigest left, BucketDigest right) {
+            return new BucketDigest(left.digest ^ right.digest, left.rowCount + right.rowCount);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof BucketDigest)) {
+                return false;
+            }
+            BucketDigest that = (BucketDigest) other;
+            return digest == that.digest && rowCount == that.rowCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(digest) * 31 + Long.hashCode(rowCount);
+        }
+    }
+}
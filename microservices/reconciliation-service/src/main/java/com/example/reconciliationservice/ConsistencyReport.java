@@ -0,0 +1,53 @@
+package com.example.reconciliationservice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConsistencyReport {
+    private int mismatchCount;
+    private int digestQueries;
+    private long rowsFetched;
+    private List<String> sampleMismatches = new ArrayList<>();  // "PUID:REASON", capped
+
+    // Getters and setters
+    public int getMismatchCount() {
+        return mismatchCount;
+    }
+
+    public void setMismatchCount(int mismatchCount) {
+        this.mismatchCount = mismatchCount;
+    }
+
+    public int getDigestQueries() {
+        return digestQueries;
+    }
+
+    public void setDigestQueries(int digestQueries) {
+        this.digestQueries = digestQueries;
+    }
+
+    public long getRowsFetched() {
+        return rowsFetched;
+    }
+
+    public void setRowsFetched(long rowsFetched) {
+        this.rowsFetched = rowsFetched;
+    }
+
+    public List<String> getSampleMismatches() {
+        return sampleMismatches;
+    }
+
+    public void setSampleMismatches(List<String> sampleMismatches) {
+        this.sampleMismatches = sampleMismatches;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsistencyReport{" +
+                "mismatchCount=" + mismatchCount +
+                ", digestQueries=" + digestQueries +
+                ", rowsFetched=" + rowsFetched +
+                '}';
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.reconciliationservice;
+
+public class ExportStatus {
+    private String exportId;
+    private String kind;
+    private String status;  // RUNNING, COMPLETED, FAILED or INTERRUPTED (RUNNING when the service restarted)
+    private int parts;
+    private long rowCount;
+    private String lastKey;
+    private String error;
+
+    // Getters and setters
+    public String getExportId() {
+        return exportId;
+    }
+
+    public void setExportId(String exportId) {
+        this.exportId = exportId;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public void setKind(String kind) {
+        this.kind = kind;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getParts() {
+        return parts;
+    }
+
+    public void setParts(int parts) {
+        this.parts = parts;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public void setRowCount(long rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    public String getLastKey() {
+        return lastKey;
+    }
+
+    public void setLastKey(String lastKey) {
+        this.lastKey = lastKey;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return "ExportStatus{" +
+                "exportId='" + exportId + '\'' +
+                ", kind='" + kind + '\'' +
+                ", status='" + status + '\'' +
+                ", parts=" + parts +
+                ", rowCount=" + rowCount +
+                '}';
+    }
+}
@@ -0,0 +1,359 @@
+package com.example.reconciliationservice;
+
+import com.example.reconciliationservice.SpannerWorkloads.WorkloadClass;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.Key;
+import com.google.cloud.spanner.KeySet;
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.ReadOnlyTransaction;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Struct;
+import com.google.cloud.spanner.TimestampBound;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconciles only the Transactions, Payments and Reconciliation rows that changed since the
+ * last persisted watermark.
+ *
+ * Each cycle takes a strong read timestamp as its upper bound. Every commit after that point
+ * gets a later commit timestamp, so reading (watermark, upperBound] at that timestamp misses
+ * nothing. The delta is found through the (ShardId, Timestamp) indexes from changeset 3 and is
+ * read one shard per chunk, in parallel. Mismatches are written to ReconciliationMismatch and
+ * the watermark is then moved up to the upper bound, never back.
+ *
+ * A transaction that stays PENDING is not rewritten, so it would never show up in the delta.
+ * Each cycle therefore also picks up the PENDING transactions that crossed
+ * {@code reconciliation.incremental.pending-timeout-seconds} during the cycle's window.
+ */
+@Component
+public class IncrementalReconciler {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalReconciler.class);
+
+    static final String WATERMARK_TABLE = "ReconciliationWatermark";
+    static final String MISMATCH_TABLE = "ReconciliationMismatch";
+    private static final String WATERMARK_NAME = "incremental";
+
+    // Must match MOD(FARM_FINGERPRINT(...), 16) of the ShardId columns in changeset 3
+    static final int SHARD_COUNT = 16;
+
+    private final ReconciliationService reconciliationService;
+    private final SpannerWorkloads spannerWorkloads;
+    private final Timer cycleTimer;
+    private final Counter changedRowsCounter;
+    private final Counter mismatchCounter;
+
+    private ExecutorService chunkExecutor;
+    // Unknown (NaN lag) until the first cycle reads the persisted watermark
+    private volatile long watermarkMillis = -1;
+
+    @Value("${reconciliation.incremental.enabled:false}")
+    private boolean enabled;
+
+    @Value("${reconciliation.incremental.pending-timeout-seconds:300}")
+    private long pendingTimeoutSeconds;
+
+    @Value("${reconciliation.incremental.parallelism:8}")
+    private int parallelism;
+
+    @Value("${reconciliation.incremental.initial-lookback-seconds:3600}")
+    private long initialLookbackSeconds;
+
+    public IncrementalReconciler(ReconciliationService reconciliationService, SpannerWorkloads spannerWorkloads,
+                                 MeterRegistry meterRegistry) {
+        this.reconciliationService = reconciliationService;
+        this.spannerWorkloads = spannerWorkloads;
+        this.cycleTimer = Timer.builder("reconciliation.incremental.cycle")
+                .description("Duration of one incremental reconciliation cycle")
+                .register(meterRegistry);
+        this.changedRowsCounter = Counter.builder("reconciliation.incremental.changed.puids")
+                .description("PUIDs read because one of their rows changed since the watermark")
+                .register(meterRegistry);
+        this.mismatchCounter = Counter.builder("reconciliation.incremental.mismatches")
+                .description("Mismatches detected by incremental reconciliation")
+                .register(meterRegistry);
+        Gauge.builder("reconciliation.incremental.lag", this, IncrementalReconciler::currentLagMillis)
+                .description("Time between now and the persisted watermark")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void startExecutor() {
+        this.chunkExecutor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    @PreDestroy
+    public void stopExecutor() {
+        chunkExecutor.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${reconciliation.incremental.interval-ms:5000}")
+    public void runCycle() {
+        if (!enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            reconcileSinceWatermark();
+        } catch (Exception e) {
+            logger.error("Incremental reconciliation cycle failed: {}", e.getMessage());
+        } finally {
+            cycleTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void reconcileSinceWatermark() throws Exception {
+        DatabaseClient client = reconciliationService.getSpannerClient();
+
+        CycleBounds bounds = spannerWorkloads.run(WorkloadClass.BACKGROUND_SCAN, "read_watermark", () -> readBounds(client));
+        Timestamp watermark = bounds.watermark;
+        Timestamp upperBound = bounds.upperBound;
+        watermarkMillis = watermark.toSqlTimestamp().getTime();
+
+        List<Future<Integer>> chunks = new ArrayList<>();
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            long shardId = shard;
+            chunks.add(chunkExecutor.submit(() -> spannerWorkloads.run(WorkloadClass.BACKGROUND_SCAN, "reconcile_chunk",
+                    () -> reconcileShard(client, watermark, upperBound, shardId))));
+        }
+        int mismatches = 0;
+        for (Future<Integer> chunk : chunks) {
+            mismatches += chunk.get();
+        }
+
+        Timestamp advanced = spannerWorkloads.run(WorkloadClass.BACKGROUND_SCAN, "advance_watermark",
+                () -> advanceWatermark(client, upperBound));
+        watermarkMillis = advanced.toSqlTimestamp().getTime();
+
+        logger.info("Incremental reconciliation cycle from={} to={} mismatches={}", watermark, upperBound, mismatches);
+    }
+
+    // The strong read timestamp of the watermark read is the upper bound of the cycle
+    private CycleBounds readBounds(DatabaseClient client) {
+        try (ReadOnlyTransaction snapshot = client.singleUseReadOnlyTransaction(TimestampBound.strong());
+             ResultSet resultSet = snapshot.read(WATERMARK_TABLE, KeySet.singleKey(Key.of(WATERMARK_NAME)), Arrays.asList("Watermark"),
+                     spannerWorkloads.readOptions(WorkloadClass.BACKGROUND_SCAN, "read_watermark"))) {
+            Timestamp stored = resultSet.next() ? resultSet.getTimestamp("Watermark") : null;
+            Timestamp upperBound = snapshot.getReadTimestamp();
+            Timestamp watermark = stored != null
+                    ? stored
+                    : Timestamp.ofTimeSecondsAndNanos(upperBound.getSeconds() - initialLookbackSeconds, 0);
+            return new CycleBounds(watermark, upperBound);
+        }
+    }
+
+    /**
+     * Moves the persisted watermark up to {@code upperBound} and returns the watermark now stored.
+     * This assumes a single replica: with more, every replica scans the same range. The check
+     * only keeps a slower cycle from moving the watermark back behind a faster one.
+     */
+    private Timestamp advanceWatermark(DatabaseClient client, Timestamp upperBound) {
+        return client.readWriteTransaction(spannerWorkloads.transactionOptions(WorkloadClass.BACKGROUND_SCAN, "advance_watermark"))
+                .run(transaction -> {
+                    Timestamp stored;
+                    try (ResultSet resultSet = transaction.read(WATERMARK_TABLE, KeySet.singleKey(Key.of(WATERMARK_NAME)),
+                            Arrays.asList("Watermark"), spannerWorkloads.readOptions(WorkloadClass.BACKGROUND_SCAN, "advance_watermark"))) {
+                        stored = resultSet.next() ? resultSet.getTimestamp("Watermark") : null;
+                    }
+                    if (stored != null && stored.compareTo(upperBound) >= 0) {
+                        logger.warn("Watermark already at {}, not moving it back to {}", stored, upperBound);
+                        return stored;
+                    }
+                    transaction.buffer(Mutation.newInsertOrUpdateBuilder(WATERMARK_TABLE)
+                            .set("Name").to(WATERMARK_NAME)
+                            .set("Watermark").to(upperBound)
+                            .set("UpdatedAt").to(com.google.cloud.spanner.Value.COMMIT_TIMESTAMP)
+                            .build());
+                    return upperBound;
+                });
+    }
+
+    private int reconcileShard(DatabaseClient client, Timestamp from, Timestamp to, long shard) {
+        Timestamp pendingCutoff = minusSeconds(to, pendingTimeoutSeconds);
+        try (ReadOnlyTransaction snapshot = client.readOnlyTransaction(TimestampBound.ofReadTimestamp(to))) {
+            Set<String> changed = new TreeSet<>();
+            collectChangedKeys(snapshot, "Transactions", "PUID", "TransactionsByShardTimestamp", "",
+                    shard, from, to, changed);
+            collectChangedKeys(snapshot, "Payments", "PaymentUID", "PaymentsByShardTimestamp", "",
+                    shard, from, to, changed);
+            collectChangedKeys(snapshot, "Reconciliation", "PUID", "ReconciliationByShardTimestamp", "",
+                    shard, from, to, changed);
+            // Transactions whose PENDING age passed the timeout between the previous cycle and this one
+            collectChangedKeys(snapshot, "Transactions", "PUID", "TransactionsByShardTimestamp", " AND Status = 'PENDING'",
+                    shard, minusSeconds(from, pendingTimeoutSeconds), pendingCutoff, changed);
+            if (changed.isEmpty()) {
+                return 0;
+            }
+            changedRowsCounter.increment(changed.size());
+
+            KeySet keys = toKeySet(changed);
+            Map<String, Struct> transactions = readByKey(snapshot, "Transactions", keys, "PUID", "Amount", "Status", "Timestamp");
+            Map<String, Struct> payments = readByKey(snapshot, "Payments", keys, "PaymentUID", "Amount", "Status");
+            Map<String, Struct> reconciliations = readByKey(snapshot, "Reconciliation", keys, "PUID", "Amount", "Status");
+            Map<String, Struct> openMismatches = readByKey(snapshot, MISMATCH_TABLE, keys, "PUID");
+
+            List<Mutation> mutations = new ArrayList<>();
+            int mismatches = 0;
+            for (String puid : changed) {
+                Struct transaction = transactions.get(puid);
+                Struct payment = payments.get(puid);
+                Struct reconciliation = reconciliations.get(puid);
+                String reason = findMismatch(transaction, payment, reconciliation, pendingCutoff);
+                if (reason != null) {
+                    mismatches++;
+                    mutations.add(Mutation.newInsertOrUpdateBuilder(MISMATCH_TABLE)
+                            .set("PUID").to(puid)
+                            .set("Reason").to(reason)
+                            .set("Details").to("transaction=" + describe(transaction)
+                                    + " payment=" + describe(payment)
+                                    + " reconciliation=" + describe(reconciliation))
+                            .set("DetectedAt").to(com.google.cloud.spanner.Value.COMMIT_TIMESTAMP)
+                            .build());
+                } else if (openMismatches.containsKey(puid)) {
+                    mutations.add(Mutation.delete(MISMATCH_TABLE, Key.of(puid)));
+                }
+            }
+            if (!mutations.isEmpty()) {
+                spannerWorkloads.write(client, WorkloadClass.BACKGROUND_SCAN, "record_mismatches", mutations);
+            }
+            mismatchCounter.increment(mismatches);
+            return mismatches;
+        }
+    }
+
+    // Range scan of one shard of the table's (ShardId, Timestamp) index over (from, to]
+    private void collectChangedKeys(ReadOnlyTransaction snapshot, String table, String keyColumn, String index, String filter,
+                                    long shard, Timestamp from, Timestamp to, Set<String> changed) {
+        String sql = "SELECT " + keyColumn + " FROM " + table + "@{FORCE_INDEX=" + index + "}"
+                + " WHERE ShardId = @shard AND Timestamp > @from AND Timestamp <= @to" + filter;
+        Statement statement = Statement.newBuilder(sql)
+                .bind("shard").to(shard)
+                .bind("from").to(from)
+                .bind("to").to(to)
+                .build();
+        try (ResultSet resultSet = snapshot.executeQuery(statement,
+                spannerWorkloads.queryOptions(WorkloadClass.BACKGROUND_SCAN, "reconcile_chunk"))) {
+            while (resultSet.next()) {
+                changed.add(resultSet.getString(0));
+            }
+        }
+    }
+
+    private Map<String, Struct> readByKey(ReadOnlyTransaction snapshot, String table, KeySet keys, String... columns) {
+        Map<String, Struct> rows = new HashMap<>();
+        try (ResultSet resultSet = snapshot.read(table, keys, Arrays.asList(columns),
+                spannerWorkloads.readOptions(WorkloadClass.BACKGROUND_SCAN, "reconcile_chunk"))) {
+            while (resultSet.next()) {
+                rows.put(resultSet.getString(0), resultSet.getCurrentRowAsStruct());
+            }
+        }
+        return rows;
+    }
+
+    private KeySet toKeySet(Set<String> puids) {
+        KeySet.Builder builder = KeySet.newBuilder();
+        for (String puid : puids) {
+            builder.addKey(Key.of(puid));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the mismatch reason for one PUID, or null when its rows agree. A PENDING transaction
+     * is in flight until its Timestamp is at or before {@code pendingCutoff}; after that it is
+     * reported as stuck. A FAILED transaction may have no payment or a FAILED or REJECTED one,
+     * but a COMPLETED payment means money moved for a transaction the caller saw fail.
+     */
+    static String findMismatch(Struct transaction, Struct payment, Struct reconciliation, Timestamp pendingCutoff) {
+        String reason = findPaymentMismatch(transaction, payment, pendingCutoff);
+        if (reason != null || payment == null || "PENDING".equals(transaction.getString("Status"))) {
+            return reason;
+        }
+        if (reconciliation == null) {
+            return "COMPLETED".equals(transaction.getString("Status")) ? "RECONCILIATION_MISSING" : null;
+        }
+        if (!sameAmount(transaction, reconciliation)) {
+            return "RECONCILIATION_AMOUNT_MISMATCH";
+        }
+        return null;
+    }
+
+    // The Transactions against Payments part of findMismatch, shared with ConsistencyChecker
+    static String findPaymentMismatch(Struct transaction, Struct payment, Timestamp pendingCutoff) {
+        if (transaction == null) {
+            return "TRANSACTION_MISSING";
+        }
+        String status = transaction.getString("Status");
+        if ("PENDING".equals(status)) {
+            return transaction.getTimestamp("Timestamp").compareTo(pendingCutoff) <= 0 ? "TRANSACTION_STUCK_PENDING" : null;
+        }
+        boolean completed = "COMPLETED".equals(status);
+        if (payment == null) {
+            return completed ? "PAYMENT_MISSING" : null;
+        }
+        if (!sameAmount(transaction, payment)) {
+            return "PAYMENT_AMOUNT_MISMATCH";
+        }
+        String paymentStatus = payment.getString("Status");
+        if (completed && !"COMPLETED".equals(paymentStatus)) {
+            return "PAYMENT_STATUS_MISMATCH";
+        }
+        if (!completed && "COMPLETED".equals(paymentStatus)) {
+            return "PAYMENT_CAPTURED_ON_FAILED_TRANSACTION";
+        }
+        return null;
+    }
+
+    // Amounts are FLOAT64, compare them in minor units
+    private static boolean sameAmount(Struct left, Struct right) {
+        return Amounts.minorUnits(left.getDouble("Amount")) == Amounts.minorUnits(right.getDouble("Amount"));
+    }
+
+    private static String describe(Struct row) {
+        return row == null ? "missing" : row.getDouble("Amount") + "/" + row.getString("Status");
+    }
+
+    static Timestamp minusSeconds(Timestamp timestamp, long seconds) {
+        return Timestamp.ofTimeSecondsAndNanos(timestamp.getSeconds() - seconds, timestamp.getNanos());
+    }
+
+    private double currentLagMillis() {
+        long watermark = watermarkMillis;
+        return watermark < 0 ? Double.NaN : System.currentTimeMillis() - watermark;
+    }
+
+    private static final class CycleBounds {
+        final Timestamp watermark;
+        final Timestamp upperBound;
+
+        CycleBounds(Timestamp watermark, Timestamp upperBound) {
+            this.watermark = watermark;
+            this.upperBound = upperBound;
+        }
+    }
+}
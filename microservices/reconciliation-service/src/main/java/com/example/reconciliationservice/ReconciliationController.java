@@ -1,23 +1,37 @@
 package com.example.reconciliationservice;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.logging.Logger;
+import java.nio.file.Path;
+import java.time.format.DateTimeParseException;
 
 @RestController
 @RequestMapping("/reconciliation")
 public class ReconciliationController {
 
-    private static final Logger logger = Logger.getLogger(ReconciliationController.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(ReconciliationController.class);
 
     @Autowired
     private ReconciliationService reconciliationService;
 
+    @Autowired
+    private ConsistencyChecker consistencyChecker;
+
+    @Autowired
+    private ReconciliationExporter reconciliationExporter;
+
     @PostMapping
     public ResponseEntity<String> processReconciliation(@RequestBody ReconciliationRequest reconciliationRequest) {
-        logger.info("Received reconciliation request: " + reconciliationRequest);
+        logger.debug("Received reconciliation request: {}", reconciliationRequest);
         if (reconciliationRequest.getPuid() == null || reconciliationRequest.getAmount() <= 0) {
             return ResponseEntity.badRequest().body("Invalid reconciliation request");
         }
@@ -26,8 +40,65 @@ public class ReconciliationController {
             reconciliationService.processReconciliation(reconciliationRequest);
             return ResponseEntity.ok("Reconciliation processed successfully.");
         } catch (Exception e) {
-            logger.severe("Error processing reconciliation: " + e.getMessage());
+            logger.error("Error processing reconciliation: {}", e.getMessage());
             return ResponseEntity.status(500).body("Error processing reconciliation: " + e.getMessage());
         }
     }
+
+    // Records the mismatches it finds, so it is a POST and never triggered by a crawler, probe or proxy retry
+    @PostMapping("/consistency")
+    public ResponseEntity<ConsistencyReport> checkConsistency() {
+        try {
+            return ResponseEntity.ok(consistencyChecker.checkTransactionsAgainstPayments());
+        } catch (Exception e) {
+            logger.error("Error running consistency check: {}", e.getMessage());
+            return ResponseEntity.status(500).build();
+        }
+    }
+
+    // kind is "results" or "mismatches"; from/to are RFC 3339 timestamps, to is exclusive
+    @PostMapping("/exports")
+    public ResponseEntity<ExportStatus> startExport(@RequestParam String kind, @RequestParam String from, @RequestParam String to) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(reconciliationExporter.start(kind, from, to));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            logger.warn("Rejected export request: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @PostMapping("/exports/{exportId}/resume")
+    public ResponseEntity<ExportStatus> resumeExport(@PathVariable String exportId) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(reconciliationExporter.resume(exportId));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalStateException e) {
+            logger.warn("Cannot resume export {}: {}", exportId, e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+
+    @GetMapping("/exports/{exportId}")
+    public ResponseEntity<ExportStatus> exportStatus(@PathVariable String exportId) {
+        try {
+            return ResponseEntity.ok(reconciliationExporter.status(exportId));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    // Streams one finished gzip CSV part; parts are numbered from 0 to the status' parts count - 1
+    @GetMapping("/exports/{exportId}/parts/{part}")
+    public ResponseEntity<Resource> exportPart(@PathVariable String exportId, @PathVariable int part) {
+        try {
+            Path file = reconciliationExporter.partFile(exportId, part);
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType("application/gzip"))
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + exportId + "-" + file.getFileName() + "\"")
+                    .body(new FileSystemResource(file));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
 }
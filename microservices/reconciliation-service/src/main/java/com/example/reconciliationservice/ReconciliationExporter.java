@@ -0,0 +1,463 @@
+package com.example.reconciliationservice;
+
+import com.example.reconciliationservice.SpannerWorkloads.WorkloadClass;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.ReadOnlyTransaction;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.TimestampBound;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams reconciliation results or mismatches for a time range into gzip-compressed CSV parts.
+ *
+ * Each export reads the table's (ShardId, time) index from changeset 5 one shard at a time, each
+ * shard as a range scan in (time, PUID) order, all in one read-only transaction at a fixed
+ * read timestamp, so its cost follows the rows in the range rather than the table. Rows are written
+ * as they arrive through a buffered gzip stream on a {@link FileChannel}, so memory use does
+ * not depend on the number of rows. A part is closed once its compressed size reaches
+ * {@code reconciliation.export.part-size-bytes}; it is synced, renamed from {@code .tmp} and
+ * then recorded, with the shard, time and PUID of its last row, in the export's
+ * {@code manifest.properties}. Resuming a failed export discards the unfinished part and
+ * continues after that row at the same read timestamp, which must still be inside the database's version retention period.
+ * Finished parts are served by {@link #partFile}; the export directory is meant to be on a
+ * persistent volume so parts and manifests survive a restart.
+ */
+@Component
+public class ReconciliationExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconciliationExporter.class);
+
+    private static final String MANIFEST = "manifest.properties";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final Pattern EXPORT_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    enum Kind {
+        RESULTS("Reconciliation", "ReconciliationByShardTimestamp", "Timestamp",
+                "PUID", "Amount", "Status", "Timestamp"),
+        MISMATCHES(IncrementalReconciler.MISMATCH_TABLE, "ReconciliationMismatchByShardDetectedAt", "DetectedAt",
+                "PUID", "Reason", "Details", "DetectedAt");
+
+        final String table;
+        // (ShardId, timeColumn) index storing the exported columns, see changeset 5
+        final String index;
+        final String timeColumn;
+        final List<String> columns;
+
+        Kind(String table, String index, String timeColumn, String... columns) {
+            this.table = table;
+            this.index = index;
+            this.timeColumn = timeColumn;
+            this.columns = Arrays.asList(columns);
+        }
+    }
+
+    private final ReconciliationService reconciliationService;
+    private final SpannerWorkloads spannerWorkloads;
+    private final Set<String> runningExports = ConcurrentHashMap.newKeySet();
+    private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "reconciliation-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Value("${reconciliation.export.directory:/var/lib/reconciliation-exports}")
+    private String exportDirectory;
+
+    @Value("${reconciliation.export.part-size-bytes:67108864}")
+    private long partSizeBytes;
+
+    @Value("${reconciliation.export.buffer-bytes:262144}")
+    private int bufferBytes;
+
+    public ReconciliationExporter(ReconciliationService reconciliationService, SpannerWorkloads spannerWorkloads) {
+        this.reconciliationService = reconciliationService;
+        this.spannerWorkloads = spannerWorkloads;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        exportExecutor.shutdownNow();
+    }
+
+    public ExportStatus start(String kind, String from, String to) {
+        Kind exportKind = Kind.valueOf(kind.toUpperCase(Locale.ROOT));
+        Timestamp fromTimestamp = Timestamp.parseTimestamp(from);
+        Timestamp toTimestamp = Timestamp.parseTimestamp(to);
+        if (fromTimestamp.compareTo(toTimestamp) >= 0) {
+            throw new IllegalArgumentException("from must be before to");
+        }
+
+        String exportId = UUID.randomUUID().toString();
+        Properties manifest = new Properties();
+        manifest.setProperty("kind", exportKind.name());
+        manifest.setProperty("from", fromTimestamp.toString());
+        manifest.setProperty("to", toTimestamp.toString());
+        manifest.setProperty("parts", "0");
+        manifest.setProperty("rows", "0");
+        manifest.setProperty("lastShard", "0");
+        manifest.setProperty("lastTime", "");
+        manifest.setProperty("lastKey", "");
+        try {
+            Files.createDirectories(directoryOf(exportId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        submit(exportId, manifest);
+        return toStatus(exportId, manifest);
+    }
+
+    public ExportStatus resume(String exportId) {
+        Properties manifest = readManifest(exportId);
+        if ("COMPLETED".equals(manifest.getProperty("status"))) {
+            throw new IllegalStateException("Export " + exportId + " is already complete");
+        }
+        if (!manifest.containsKey("lastShard") && !"0".equals(manifest.getProperty("parts"))) {
+            // Written in PUID order before the exports read the (ShardId, time) indexes
+            throw new IllegalStateException("Export " + exportId + " predates shard-ordered exports, start a new one");
+        }
+        manifest.remove("error");
+        submit(exportId, manifest);
+        return toStatus(exportId, manifest);
+    }
+
+    public ExportStatus status(String exportId) {
+        ExportStatus status = toStatus(exportId, readManifest(exportId));
+        // Left RUNNING by a restart of the service; it continues only once resumed
+        if ("RUNNING".equals(status.getStatus()) && !runningExports.contains(exportId)) {
+            status.setStatus("INTERRUPTED");
+        }
+        return status;
+    }
+
+    // A finished part of the export; the part being written is not listed in the manifest yet
+    public Path partFile(String exportId, int part) {
+        Properties manifest = readManifest(exportId);
+        if (part < 0 || part >= Integer.parseInt(manifest.getProperty("parts", "0"))) {
+            throw new IllegalArgumentException("Unknown part " + part + " of export " + exportId);
+        }
+        return directoryOf(exportId).resolve(partName(part));
+    }
+
+    private void submit(String exportId, Properties manifest) {
+        if (!runningExports.add(exportId)) {
+            throw new IllegalStateException("Export " + exportId + " is already running");
+        }
+        try {
+            manifest.setProperty("status", "RUNNING");
+            writeManifest(exportId, manifest);
+            exportExecutor.execute(() -> {
+                try {
+                    runExport(exportId, manifest);
+                } catch (Exception e) {
+                    logger.error("Export {} failed after parts={}: {}", exportId, manifest.getProperty("parts"), e.getMessage());
+                    manifest.setProperty("status", "FAILED");
+                    manifest.setProperty("error", String.valueOf(e.getMessage()));
+                    try {
+                        writeManifest(exportId, manifest);
+                    } catch (UncheckedIOException ioe) {
+                        logger.error("Could not record failure of export {}: {}", exportId, ioe.getMessage());
+                    }
+                } finally {
+                    runningExports.remove(exportId);
+                }
+            });
+        } catch (RuntimeException e) {
+            runningExports.remove(exportId);
+            throw e;
+        }
+    }
+
+    private void runExport(String exportId, Properties manifest) throws IOException {
+        Kind kind = Kind.valueOf(manifest.getProperty("kind"));
+        Path directory = directoryOf(exportId);
+        deleteUnfinishedParts(directory);
+
+        String operation = "export_" + kind.name().toLowerCase(Locale.ROOT);
+        spannerWorkloads.run(WorkloadClass.EXPORT, operation, () -> {
+            try {
+                streamRows(exportId, directory, manifest, kind, operation);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+
+        manifest.setProperty("status", "COMPLETED");
+        writeManifest(exportId, manifest);
+        logger.info("Export {} completed with parts={} rows={}", exportId, manifest.getProperty("parts"), manifest.getProperty("rows"));
+    }
+
+    private void streamRows(String exportId, Path directory, Properties manifest, Kind kind, String operation) throws IOException {
+        String readTimestamp = manifest.getProperty("readTimestamp");
+        TimestampBound bound = readTimestamp == null
+                ? TimestampBound.strong()
+                : TimestampBound.ofReadTimestamp(Timestamp.parseTimestamp(readTimestamp));
+        Timestamp from = Timestamp.parseTimestamp(manifest.getProperty("from"));
+        Timestamp to = Timestamp.parseTimestamp(manifest.getProperty("to"));
+        int firstShard = Integer.parseInt(manifest.getProperty("lastShard", "0"));
+        String lastTime = manifest.getProperty("lastTime", "");
+
+        PartWriter part = null;
+        try (ReadOnlyTransaction snapshot = reconciliationService.getSpannerClient().readOnlyTransaction(bound)) {
+            for (int shard = firstShard; shard < IncrementalReconciler.SHARD_COUNT; shard++) {
+                // Only the shard of the last finished part resumes after its last row
+                boolean resuming = shard == firstShard && !lastTime.isEmpty();
+                Statement statement = exportStatement(kind, shard, from, to,
+                        resuming ? Timestamp.parseTimestamp(lastTime) : null, manifest.getProperty("lastKey", ""));
+                try (ResultSet resultSet = snapshot.executeQuery(statement, spannerWorkloads.queryOptions(WorkloadClass.EXPORT, operation))) {
+                    while (resultSet.next()) {
+                        if (part == null) {
+                            if (readTimestamp == null) {
+                                readTimestamp = snapshot.getReadTimestamp().toString();
+                                manifest.setProperty("readTimestamp", readTimestamp);
+                            }
+                            part = new PartWriter(directory, Integer.parseInt(manifest.getProperty("parts")), kind);
+                        }
+                        part.writeRow(resultSet, shard);
+                        if (part.compressedBytes() >= partSizeBytes) {
+                            finishPart(exportId, manifest, part);
+                            part = null;
+                        }
+                    }
+                }
+            }
+            if (part != null) {
+                finishPart(exportId, manifest, part);
+                part = null;
+            }
+        } finally {
+            if (part != null) {
+                part.abort();
+            }
+        }
+    }
+
+    /**
+     * Range scan of one shard of the kind's (ShardId, time) index over [from, to), in (time, PUID)
+     * order. A resumed shard starts the scan at the last exported time and skips the rows at that
+     * time up to the last exported PUID.
+     */
+    private static Statement exportStatement(Kind kind, int shard, Timestamp from, Timestamp to,
+                                             Timestamp afterTime, String afterKey) {
+        String sql = "SELECT " + String.join(", ", kind.columns) + " FROM " + kind.table + "@{FORCE_INDEX=" + kind.index + "}"
+                + " WHERE ShardId = @shard AND " + kind.timeColumn + " >= @from AND " + kind.timeColumn + " < @to";
+        if (afterTime != null) {
+            sql += " AND (" + kind.timeColumn + " > @from OR PUID > @afterKey)";
+        }
+        Statement.Builder statement = Statement.newBuilder(sql + " ORDER BY " + kind.timeColumn + ", PUID")
+                .bind("shard").to(shard)
+                .bind("from").to(afterTime != null ? afterTime : from)
+                .bind("to").to(to);
+        if (afterTime != null) {
+            statement.bind("afterKey").to(afterKey);
+        }
+        return statement.build();
+    }
+
+    private void finishPart(String exportId, Properties manifest, PartWriter part) throws IOException {
+        part.finish();
+        manifest.setProperty("parts", String.valueOf(Integer.parseInt(manifest.getProperty("parts")) + 1));
+        manifest.setProperty("rows", String.valueOf(Long.parseLong(manifest.getProperty("rows")) + part.rows));
+        manifest.setProperty("lastShard", String.valueOf(part.lastShard));
+        manifest.setProperty("lastTime", part.lastTime);
+        manifest.setProperty("lastKey", part.lastKey);
+        writeManifest(exportId, manifest);
+    }
+
+    private void deleteUnfinishedParts(Path directory) throws IOException {
+        try (DirectoryStream<Path> unfinished = Files.newDirectoryStream(directory, "part-*" + TMP_SUFFIX)) {
+            for (Path path : unfinished) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static String partName(int index) {
+        return String.format("part-%05d.csv.gz", index);
+    }
+
+    private Path directoryOf(String exportId) {
+        if (!EXPORT_ID.matcher(exportId).matches()) {
+            throw new IllegalArgumentException("Invalid export id: " + exportId);
+        }
+        return Paths.get(exportDirectory, exportId);
+    }
+
+    private Properties readManifest(String exportId) {
+        Properties manifest = new Properties();
+        try (InputStream in = Files.newInputStream(directoryOf(exportId).resolve(MANIFEST))) {
+            manifest.load(in);
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException("Unknown export: " + exportId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return manifest;
+    }
+
+    // Written to a temporary file and renamed, so a crash never leaves a torn manifest
+    private void writeManifest(String exportId, Properties manifest) {
+        Path target = directoryOf(exportId).resolve(MANIFEST);
+        Path tmp = target.resolveSibling(MANIFEST + TMP_SUFFIX);
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                manifest.store(out, null);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ExportStatus toStatus(String exportId, Properties manifest) {
+        ExportStatus status = new ExportStatus();
+        status.setExportId(exportId);
+        status.setKind(manifest.getProperty("kind"));
+        status.setStatus(manifest.getProperty("status"));
+        status.setParts(Integer.parseInt(manifest.getProperty("parts", "0")));
+        status.setRowCount(Long.parseLong(manifest.getProperty("rows", "0")));
+        status.setLastKey(manifest.getProperty("lastKey"));
+        status.setError(manifest.getProperty("error"));
+        return status;
+    }
+
+    // One gzip-compressed CSV part, written to a .tmp file until it is finished
+    private final class PartWriter {
+        private final Path tmpPath;
+        private final Path finalPath;
+        private final FileChannel channel;
+        private final GZIPOutputStream gzip;
+        private final OutputStream out;
+        private final StringBuilder line = new StringBuilder(256);
+        private final int columnCount;
+        private final int timeColumn;
+        long rows;
+        int lastShard;
+        String lastTime;
+        String lastKey;
+
+        PartWriter(Path directory, int index, Kind kind) throws IOException {
+            List<String> columns = kind.columns;
+            String name = partName(index);
+            this.finalPath = directory.resolve(name);
+            this.tmpPath = directory.resolve(name + TMP_SUFFIX);
+            this.columnCount = columns.size();
+            this.timeColumn = columns.lastIndexOf(kind.timeColumn);
+            this.channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.gzip = new GZIPOutputStream(Channels.newOutputStream(channel), bufferBytes);
+            this.out = new BufferedOutputStream(gzip, bufferBytes);
+            for (int i = 0; i < columnCount; i++) {
+                appendField(columns.get(i), i);
+            }
+            writeLine();
+        }
+
+        void writeRow(ResultSet resultSet, int shard) throws IOException {
+            for (int i = 0; i < columnCount; i++) {
+                appendField(resultSet.isNull(i) ? "" : format(resultSet, i), i);
+            }
+            writeLine();
+            rows++;
+            lastShard = shard;
+            lastTime = resultSet.getTimestamp(timeColumn).toString();
+            lastKey = resultSet.getString(0);
+        }
+
+        // Bytes that have reached the file; trails the rows written by at most the two buffers
+        long compressedBytes() throws IOException {
+            return channel.position();
+        }
+
+        void finish() throws IOException {
+            out.flush();
+            gzip.finish();
+            channel.force(true);
+            out.close();
+            Files.move(tmpPath, finalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        void abort() {
+            try {
+                out.close();
+                Files.deleteIfExists(tmpPath);
+            } catch (IOException e) {
+                logger.warn("Could not discard unfinished export part {}: {}", tmpPath, e.getMessage());
+            }
+        }
+
+        private String format(ResultSet resultSet, int column) {
+            switch (resultSet.getColumnType(column).getCode()) {
+                case STRING:
+                    return resultSet.getString(column);
+                case FLOAT64:
+                    return Double.toString(resultSet.getDouble(column));
+                case INT64:
+                    return Long.toString(resultSet.getLong(column));
+                case TIMESTAMP:
+                    return resultSet.getTimestamp(column).toString();
+                default:
+                    return resultSet.getValue(column).toString();
+            }
+        }
+
+        private void appendField(String value, int column) {
+            if (column > 0) {
+                line.append(',');
+            }
+            boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                    || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+            if (!quote) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    line.append('"');
+                }
+                line.append(c);
+            }
+            line.append('"');
+        }
+
+        private void writeLine() throws IOException {
+            line.append('\n');
+            out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            line.setLength(0);
+        }
+    }
+}
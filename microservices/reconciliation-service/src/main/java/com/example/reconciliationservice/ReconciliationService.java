@@ -1,26 +1,38 @@
 package com.example.reconciliationservice;
 
+import com.example.common.StepLogger;
+import com.example.reconciliationservice.SpannerWorkloads.WorkloadClass;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.Mutation;
 import com.google.cloud.spanner.Spanner;
 import com.google.cloud.spanner.SpannerOptions;
 import com.google.cloud.spanner.DatabaseId;
 import com.google.cloud.Timestamp;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
 
 import javax.annotation.PostConstruct;
 import java.util.Collections;
-import java.util.logging.Logger;
 
 @Service
 public class ReconciliationService {
 
-    private static final Logger logger = Logger.getLogger(ReconciliationService.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(ReconciliationService.class);
     private RestTemplate restTemplate;
+    // Reconciliation.Timestamp is a commit-timestamp column, so incremental reconciliation can read rows changed since a watermark
+    private static final Timestamp COMMIT_TIMESTAMP = com.google.cloud.spanner.Value.COMMIT_TIMESTAMP;
     private static final int MAX_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 1000;
 
@@ -45,6 +57,18 @@ public class ReconciliationService {
     @Value("${reconciliation.service.url}")
     private String reconciliationServiceUrl;
 
+    // Encoding used for payloads sent to the other services (application/cbor or application/json)
+    @Value("${http.client.content-type:application/cbor}")
+    private String clientContentType;
+
+    private final StepLogger stepLogger;
+    private final SpannerWorkloads spannerWorkloads;
+
+    public ReconciliationService(StepLogger stepLogger, SpannerWorkloads spannerWorkloads) {
+        this.stepLogger = stepLogger;
+        this.spannerWorkloads = spannerWorkloads;
+    }
+
     @PostConstruct
     public void initialize() {
         initializeSpannerClient();
@@ -67,11 +91,15 @@ public class ReconciliationService {
 
             logger.info("Spanner client initialized successfully.");
         } catch (Exception e) {
-            logger.severe("Failed to initialize Spanner client: " + e.getMessage());
+            logger.error("Failed to initialize Spanner client: {}", e.getMessage());
             throw new IllegalStateException("Spanner configuration is missing or invalid.");
         }
     }
 
+    DatabaseClient getSpannerClient() {
+        return spannerClient;
+    }
+
     private void configureRestTemplate() {
         SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
         factory.setConnectTimeout(15000); // 15 seconds
@@ -81,102 +109,131 @@ public class ReconciliationService {
     }
 
     public void processReconciliation(ReconciliationRequest reconciliationRequest) {
-        logger.info("Processing reconciliation for PUID: " + reconciliationRequest.getPuid());
+        stepLogger.begin(reconciliationRequest.getPuid());
+        stepLogger.step("Processing reconciliation amount={} sourceService={}", reconciliationRequest.getAmount(), reconciliationRequest.getSourceService());
         String status = "PENDING";
 
         try {
-            logger.info("Step 1: Saving reconciliation with status: PENDING...");
+            stepLogger.step("Step 1: Saving reconciliation with status={}", status);
             saveReconciliation(reconciliationRequest, status);
 
-            logger.info("Step 2: Calling Payment Service...");
+            stepLogger.step("Step 2: Calling Payment Service");
             boolean paymentSuccess = retryWithDelay(() -> callPaymentService(reconciliationRequest), MAX_RETRIES);
 
-            logger.info("Step 3: Calling Reconciliation Service...");
+            stepLogger.step("Step 3: Calling Reconciliation Service");
             boolean reconciliationSuccess = retryWithDelay(() -> callReconciliationService(reconciliationRequest), MAX_RETRIES);
 
             status = (paymentSuccess && reconciliationSuccess) ? "COMPLETED" : "FAILED";
-            logger.info("Step 4: Updating reconciliation status to: " + status);
+            stepLogger.step("Step 4: Updating reconciliation status to status={}", status);
             updateReconciliationStatus(reconciliationRequest.getPuid(), status);
 
+            if ("FAILED".equals(status)) {
+                stepLogger.fail("Reconciliation finished with status={} puid={}", status, reconciliationRequest.getPuid());
+            }
+        } catch (PaymentRejectedException e) {
+            // A pre-check rejection is final, so the payment is neither retried nor reconciled further
+            stepLogger.fail("Payment rejected puid={} reason={}", reconciliationRequest.getPuid(), e.getMessage());
+            updateReconciliationStatus(reconciliationRequest.getPuid(), "FAILED");
         } catch (Exception e) {
-            logger.severe("Reconciliation processing failed: " + e.getMessage());
+            stepLogger.fail("Reconciliation processing failed puid={} error={}", reconciliationRequest.getPuid(), e.getMessage());
             updateReconciliationStatus(reconciliationRequest.getPuid(), "FAILED");
+        } finally {
+            stepLogger.end();
         }
     }
 
     private boolean callPaymentService(ReconciliationRequest reconciliationRequest) {
         try {
-            logger.info("Calling Payment Service...");
-            ResponseEntity<String> response = restTemplate.postForEntity(
-                    paymentServiceUrl + "/payments",
-                    reconciliationRequest,
-                    String.class
-            );
+            stepLogger.step("Calling Payment Service");
+            ResponseEntity<String> response = postToService(paymentServiceUrl + "/payments", reconciliationRequest);
             if (response.getStatusCode().is2xxSuccessful()) {
-                logger.info("Payment Service Response: " + response.getBody());
+                stepLogger.step("Payment Service response={}", response.getBody());
                 return true;
             } else {
-                logger.warning("Payment Service failed with status: " + response.getStatusCode());
+                logger.warn("Payment Service failed with status={}", response.getStatusCode());
                 return false;
             }
+        } catch (HttpClientErrorException.UnprocessableEntity e) {
+            throw new PaymentRejectedException(e.getResponseBodyAsString());
         } catch (Exception e) {
-            logger.severe("Error calling Payment Service: " + e.getMessage());
+            logger.error("Error calling Payment Service: {}", e.getMessage());
             return false;
         }
     }
 
     private boolean callReconciliationService(ReconciliationRequest reconciliationRequest) {
         if (isReconciliationService(reconciliationRequest)) {
-            logger.warning("Recursive call detected. Aborting reconciliation request for PUID: " + reconciliationRequest.getPuid());
+            stepLogger.step("Recursive call detected, skipping reconciliation call for sourceService={}", reconciliationRequest.getSourceService());
             return false;
         }
 
         try {
-            logger.info("Calling Reconciliation Service at: " + reconciliationServiceUrl);
+            stepLogger.step("Calling Reconciliation Service at url={}", reconciliationServiceUrl);
             reconciliationRequest.setSourceService("ReconciliationService");
-            ResponseEntity<String> response = restTemplate.postForEntity(
-                    reconciliationServiceUrl + "/reconciliation",
-                    reconciliationRequest,
-                    String.class
-            );
+            ResponseEntity<String> response = postToService(reconciliationServiceUrl + "/reconciliation", reconciliationRequest);
 
             if (response.getStatusCode().is2xxSuccessful()) {
-                logger.info("Reconciliation Service Response: " + response.getBody());
+                stepLogger.step("Reconciliation Service response={}", response.getBody());
                 return true;
             } else {
-                logger.warning("Reconciliation Service failed with status: " + response.getStatusCode());
+                logger.warn("Reconciliation Service failed with status={}", response.getStatusCode());
                 return false;
             }
         } catch (Exception e) {
-            logger.severe("Error calling Reconciliation Service: " + e.getMessage());
+            logger.error("Error calling Reconciliation Service: {}", e.getMessage());
             return false;
         }
     }
 
+    private ResponseEntity<String> postToService(String url, Object payload) {
+        MediaType contentType = MediaType.parseMediaType(clientContentType);
+        try {
+            return restTemplate.postForEntity(url, createRequestEntity(payload, contentType), String.class);
+        } catch (HttpClientErrorException.UnsupportedMediaType e) {
+            if (MediaType.APPLICATION_JSON.includes(contentType)) {
+                throw e;
+            }
+            // Downstream does not understand the binary encoding yet, fall back to JSON
+            logger.warn("Service at {} rejected {}, retrying with JSON", url, contentType);
+            return restTemplate.postForEntity(url, createRequestEntity(payload, MediaType.APPLICATION_JSON), String.class);
+        }
+    }
+
+    private HttpEntity<Object> createRequestEntity(Object payload, MediaType contentType) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(contentType);
+        return new HttpEntity<>(payload, headers);
+    }
+
     private boolean isReconciliationService(ReconciliationRequest reconciliationRequest) {
         return "ReconciliationService".equalsIgnoreCase(reconciliationRequest.getSourceService());
     }
 
     private void saveReconciliation(ReconciliationRequest reconciliationRequest, String status) {
-        executeSpannerWrite(() -> {
-            Mutation mutation = Mutation.newInsertOrUpdateBuilder("Reconciliation")
-                    .set("PUID").to(reconciliationRequest.getPuid())
-                    .set("Amount").to(reconciliationRequest.getAmount())
-                    .set("Status").to(status)
-                    .set("Timestamp").to(Timestamp.now())
-                    .build();
-            spannerClient.write(Collections.singletonList(mutation));
-        });
+        executeSpannerWrite(() -> spannerWorkloads.write(spannerClient, WorkloadClass.RECONCILIATION, "save_reconciliation",
+                Collections.singletonList(buildReconciliationMutation(reconciliationRequest, status))));
     }
 
     private void updateReconciliationStatus(String puid, String status) {
-        executeSpannerWrite(() -> {
-            Mutation mutation = Mutation.newUpdateBuilder("Reconciliation")
-                    .set("PUID").to(puid)
-                    .set("Status").to(status)
-                    .build();
-            spannerClient.write(Collections.singletonList(mutation));
-        });
+        executeSpannerWrite(() -> spannerWorkloads.write(spannerClient, WorkloadClass.RECONCILIATION, "update_reconciliation_status",
+                Collections.singletonList(buildStatusMutation(puid, status))));
+    }
+
+    private Mutation buildReconciliationMutation(ReconciliationRequest reconciliationRequest, String status) {
+        return Mutation.newInsertOrUpdateBuilder("Reconciliation")
+                .set("PUID").to(reconciliationRequest.getPuid())
+                .set("Amount").to(reconciliationRequest.getAmount())
+                .set("Status").to(status)
+                .set("Timestamp").to(COMMIT_TIMESTAMP)
+                .build();
+    }
+
+    private Mutation buildStatusMutation(String puid, String status) {
+        return Mutation.newUpdateBuilder("Reconciliation")
+                .set("PUID").to(puid)
+                .set("Status").to(status)
+                .set("Timestamp").to(COMMIT_TIMESTAMP)
+                .build();
     }
 
     private void executeSpannerWrite(Runnable writeOperation) {
@@ -186,7 +243,7 @@ public class ReconciliationService {
                 writeOperation.run();
                 return;
             } catch (Exception e) {
-                logger.warning("Transient error writing to Spanner, attempt " + (attempt + 1) + ": " + e.getMessage());
+                logger.warn("Transient error writing to Spanner, attempt={} error={}", attempt + 1, e.getMessage());
                 attempt++;
                 try {
                     Thread.sleep(RETRY_DELAY_MS * attempt);
@@ -199,6 +256,36 @@ public class ReconciliationService {
         throw new RuntimeException("Failed to write to Spanner after " + MAX_RETRIES + " attempts");
     }
 
+    /**
+     * Exercises the JSON/CBOR binding, the mutation builders and the HTTP client so the
+     * first real reconciliations do not pay for class loading and JIT compilation.
+     * Nothing is written to Spanner.
+     */
+    public void warmUp(int iterations, String healthUrl) throws Exception {
+        ObjectMapper jsonMapper = new ObjectMapper();
+        ObjectMapper cborMapper = new CBORMapper();
+        int httpFailures = 0;
+        String lastHttpFailure = null;
+        for (int i = 0; i < iterations; i++) {
+            ReconciliationRequest sample = new ReconciliationRequest("warmup-" + i, 10.0 + i, "TransactionService");
+            jsonMapper.readValue(jsonMapper.writeValueAsBytes(sample), ReconciliationRequest.class);
+            cborMapper.readValue(cborMapper.writeValueAsBytes(sample), ReconciliationRequest.class);
+
+            buildReconciliationMutation(sample, "PENDING");
+            buildStatusMutation(sample.getPuid(), "COMPLETED");
+
+            try {
+                restTemplate.getForEntity(healthUrl, String.class);
+            } catch (RestClientException e) {
+                httpFailures++;
+                lastHttpFailure = e.getMessage();
+            }
+        }
+        if (httpFailures > 0) {
+            logger.warn("HTTP client warm-up failed {} of {} calls to {}: {}", httpFailures, iterations, healthUrl, lastHttpFailure);
+        }
+    }
+
     private boolean retryWithDelay(RunnableWithBoolean operation, int maxRetries) {
         int retryCount = 0;
         while (retryCount < maxRetries) {
@@ -206,7 +293,7 @@ public class ReconciliationService {
                 return true;
             }
             retryCount++;
-            logger.warning("Retry attempt " + retryCount + " for operation.");
+            stepLogger.step("Retry attempt={} for operation", retryCount);
             try {
                 Thread.sleep(RETRY_DELAY_MS);
             } catch (InterruptedException e) {
@@ -221,4 +308,11 @@ public class ReconciliationService {
     private interface RunnableWithBoolean {
         boolean run();
     }
+
+    // Thrown through retryWithDelay when payment-service answers 422, which retrying cannot change
+    private static final class PaymentRejectedException extends RuntimeException {
+        PaymentRejectedException(String reason) {
+            super(reason);
+        }
+    }
 }
@@ -1,12 +1,22 @@
 package com.example.reconciliationservice;
 
+import com.example.common.StepLogger;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class ReconciliationServiceApplication {
 
     public static void main(String[] args) {
         SpringApplication.run(ReconciliationServiceApplication.class, args);
     }
+
+    @Bean
+    public StepLogger stepLogger(@Value("${logging.step-sampling.percent:1}") int samplePercent) {
+        return new StepLogger("com.example.reconciliationservice.steps", samplePercent);
+    }
 }
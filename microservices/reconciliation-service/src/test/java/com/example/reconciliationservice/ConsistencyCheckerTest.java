@@ -0,0 +1,76 @@
+package com.example.reconciliationservice;
+
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.DatabaseId;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Spanner;
+import com.google.cloud.spanner.SpannerOptions;
+import com.google.cloud.spanner.Statement;
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ConsistencyCheckerTest {
+
+    @Test
+    void guavaFarmHashMatchesDocumentedFarmFingerprintValues() {
+        // From the FARM_FINGERPRINT examples in the Spanner GoogleSQL reference
+        assertEquals(-1541654101129638711L, farmFingerprint("1footrue"));
+        assertEquals(2794438866806483259L, farmFingerprint("2applefalse"));
+        assertEquals(-4880158226897771312L, farmFingerprint("3true"));
+    }
+
+    @Test
+    void fingerprintHashesTheSameStringAsTheSqlConcat() {
+        assertEquals(farmFingerprint("abc|1050|COMPLETED"), ConsistencyChecker.fingerprint("abc", 10.5, "COMPLETED"));
+        assertEquals(farmFingerprint("abc|-1051|FAILED"), ConsistencyChecker.fingerprint("abc", -10.51, "FAILED"));
+    }
+
+    @Test
+    void minorUnitsRoundHalfwayCasesAwayFromZeroLikeSpanner() {
+        assertEquals(3L, Amounts.minorUnits(0.025));
+        assertEquals(-3L, Amounts.minorUnits(-0.025));
+        assertEquals(-1L, Amounts.minorUnits(-0.005));
+        assertEquals(0L, Amounts.minorUnits(0.0));
+    }
+
+    /**
+     * Runs ROW_FINGERPRINT_SQL against a Spanner emulator. Set SPANNER_EMULATOR_HOST and
+     * SPANNER_TEST_DATABASE (projects/.../instances/.../databases/...) to enable it.
+     */
+    @Test
+    void rowFingerprintSqlMatchesJavaFingerprint() {
+        String database = System.getenv("SPANNER_TEST_DATABASE");
+        assumeTrue(System.getenv("SPANNER_EMULATOR_HOST") != null && database != null, "no Spanner emulator configured");
+
+        DatabaseId databaseId = DatabaseId.of(database);
+        Spanner spanner = SpannerOptions.newBuilder().setProjectId(databaseId.getInstanceId().getProject()).build().getService();
+        try {
+            DatabaseClient client = spanner.getDatabaseClient(databaseId);
+            Object[][] rows = {{"abc", 10.5, "COMPLETED"}, {"3f2c-9a", 0.025, "PENDING"}, {"neg", -0.025, "FAILED"}};
+            for (Object[] row : rows) {
+                Statement statement = Statement.newBuilder("SELECT " + String.format(ConsistencyChecker.ROW_FINGERPRINT_SQL, "PUID")
+                                + " FROM (SELECT @puid AS PUID, @amount AS Amount, @status AS Status)")
+                        .bind("puid").to((String) row[0])
+                        .bind("amount").to((Double) row[1])
+                        .bind("status").to((String) row[2])
+                        .build();
+                try (ResultSet resultSet = client.singleUse().executeQuery(statement)) {
+                    resultSet.next();
+                    assertEquals(ConsistencyChecker.fingerprint((String) row[0], (Double) row[1], (String) row[2]),
+                            resultSet.getLong(0));
+                }
+            }
+        } finally {
+            spanner.close();
+        }
+    }
+
+    private static long farmFingerprint(String value) {
+        return Hashing.farmHashFingerprint64().hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.reconciliationservice;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.Struct;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class IncrementalReconcilerTest {
+
+    private static final Timestamp CUTOFF = Timestamp.ofTimeSecondsAndNanos(1_000, 0);
+
+    @Test
+    void pendingTransactionIsInFlightUntilTheCutoff() {
+        assertNull(IncrementalReconciler.findMismatch(transaction("PENDING", 1_001), null, null, CUTOFF));
+        assertEquals("TRANSACTION_STUCK_PENDING",
+                IncrementalReconciler.findMismatch(transaction("PENDING", 1_000), null, null, CUTOFF));
+    }
+
+    @Test
+    void completedTransactionNeedsCompletedPaymentAndReconciliation() {
+        assertEquals("PAYMENT_MISSING",
+                IncrementalReconciler.findMismatch(transaction("COMPLETED", 10), null, null, CUTOFF));
+        assertEquals("PAYMENT_STATUS_MISMATCH",
+                IncrementalReconciler.findMismatch(transaction("COMPLETED", 10), row(10.0, "REJECTED"), null, CUTOFF));
+        assertEquals("RECONCILIATION_MISSING",
+                IncrementalReconciler.findMismatch(transaction("COMPLETED", 10), row(10.0, "COMPLETED"), null, CUTOFF));
+        assertNull(IncrementalReconciler.findMismatch(transaction("COMPLETED", 10), row(10.0, "COMPLETED"),
+                row(10.0, "COMPLETED"), CUTOFF));
+    }
+
+    @Test
+    void failedTransactionMustNotHaveCompletedPayment() {
+        assertNull(IncrementalReconciler.findMismatch(transaction("FAILED", 10), null, null, CUTOFF));
+        assertNull(IncrementalReconciler.findMismatch(transaction("FAILED", 10), row(10.0, "REJECTED"), null, CUTOFF));
+        assertEquals("PAYMENT_CAPTURED_ON_FAILED_TRANSACTION",
+                IncrementalReconciler.findMismatch(transaction("FAILED", 10), row(10.0, "COMPLETED"), null, CUTOFF));
+    }
+
+    @Test
+    void amountsAreComparedInMinorUnits() {
+        assertNull(IncrementalReconciler.findMismatch(transaction("COMPLETED", 10), row(10.001, "COMPLETED"),
+                row(10.0, "COMPLETED"), CUTOFF));
+        assertEquals("PAYMENT_AMOUNT_MISMATCH",
+                IncrementalReconciler.findMismatch(transaction("COMPLETED", 10), row(10.01, "COMPLETED"), null, CUTOFF));
+    }
+
+    @Test
+    void halfwayAmountsRoundLikeConsistencyChecker() {
+        Struct refund = Struct.newBuilder()
+                .set("Amount").to(-0.125)
+                .set("Status").to("COMPLETED")
+                .set("Timestamp").to(Timestamp.ofTimeSecondsAndNanos(10, 0))
+                .build();
+        // -12.5 minor units round away from zero to -13, as Spanner ROUND does in the digest
+        assertNull(IncrementalReconciler.findPaymentMismatch(refund, row(-0.13, "COMPLETED"), CUTOFF));
+        assertEquals("PAYMENT_AMOUNT_MISMATCH",
+                IncrementalReconciler.findPaymentMismatch(refund, row(-0.12, "COMPLETED"), CUTOFF));
+    }
+
+    private static Struct transaction(String status, long timestampSeconds) {
+        return Struct.newBuilder()
+                .set("Amount").to(10.0)
+                .set("Status").to(status)
+                .set("Timestamp").to(Timestamp.ofTimeSecondsAndNanos(timestampSeconds, 0))
+                .build();
+    }
+
+    private static Struct row(double amount, String status) {
+        return Struct.newBuilder()
+                .set("Amount").to(amount)
+                .set("Status").to(status)
+                .build();
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.transactionservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON vs CBOR encode/decode time for the TransactionRequest payload as sent to
+ * payment-service and reconciliation-service. Payload sizes are printed once per
+ * fork, since JMH only reports time.
+ *
+ * Run with {@code mvn -Pbenchmarks test-compile exec:exec}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+    // Built like the mappers behind Spring Boot's JSON and CBOR message converters
+    private final ObjectMapper jsonMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final ObjectMapper cborMapper = Jackson2ObjectMapperBuilder.cbor().build();
+
+    private TransactionRequest request;
+    private byte[] json;
+    private byte[] cbor;
+
+    @Setup
+    public void setUp() throws Exception {
+        request = new TransactionRequest("6f1c2a9e-3b7d-4e58-9a41-0c2d8e7b5f13", "user-48213", 1249.99);
+        json = jsonMapper.writeValueAsBytes(request);
+        cbor = cborMapper.writeValueAsBytes(request);
+        System.out.println("TransactionRequest payload bytes: json=" + json.length + " cbor=" + cbor.length);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws Exception {
+        return jsonMapper.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public byte[] encodeCbor() throws Exception {
+        return cborMapper.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public TransactionRequest decodeJson() throws Exception {
+        return jsonMapper.readValue(json, TransactionRequest.class);
+    }
+
+    @Benchmark
+    public TransactionRequest decodeCbor() throws Exception {
+        return cborMapper.readValue(cbor, TransactionRequest.class);
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.transactionservice;
+
+import com.example.transactionservice.SpannerWorkloads.WorkloadClass;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ErrorCode;
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.SpannerException;
+import com.google.cloud.spanner.SpannerExceptionFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Synchronous group commit for the Transactions writes on the request path.
+ *
+ * Callers hand over their mutations and block until a commit that contains them returns, so
+ * every caller still gets a durable acknowledgement. A committer thread takes the first
+ * waiting write, keeps collecting until {@code group-commit.window-micros} has passed or
+ * {@code group-commit.max-writers} writes have joined, and commits the writes for the same
+ * database and operation in one Spanner write, tagged with that operation. If that commit
+ * fails, each write is retried on its own so only the caller with the bad mutation sees the
+ * error. Once the committers are stopping, writes go straight to Spanner.
+ */
+@Component
+public class GroupCommitter {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+
+    private static final long IDLE_POLL_MS = 100;
+
+    private final SpannerWorkloads spannerWorkloads;
+    private final DistributionSummary groupSize;
+    private final Counter fallbacks;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    private ExecutorService committers;
+    private volatile boolean running;
+
+    @Value("${group-commit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${group-commit.window-micros:2000}")
+    private long windowMicros;
+
+    @Value("${group-commit.max-writers:64}")
+    private int maxWriters;
+
+    @Value("${group-commit.committers:2}")
+    private int committerCount;
+
+    // Longest a caller waits for its group; a group can retry up to max-writers commits one by one
+    @Value("${group-commit.await-timeout-ms:15000}")
+    private long awaitTimeoutMillis;
+
+    public GroupCommitter(SpannerWorkloads spannerWorkloads, MeterRegistry meterRegistry) {
+        this.spannerWorkloads = spannerWorkloads;
+        this.groupSize = DistributionSummary.builder("spanner.group-commit.writers")
+                .description("Writes committed together in one group commit")
+                .register(meterRegistry);
+        this.fallbacks = Counter.builder("spanner.group-commit.fallbacks")
+                .description("Group commits that failed and were retried write by write")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        AtomicInteger threadNumber = new AtomicInteger();
+        committers = Executors.newFixedThreadPool(committerCount, runnable -> {
+            Thread thread = new Thread(runnable, "group-committer-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < committerCount; i++) {
+            committers.execute(this::commitLoop);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (committers != null) {
+            // Committers finish the group in hand and exit at their next poll
+            committers.shutdown();
+            try {
+                if (!committers.awaitTermination(awaitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    committers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                committers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Writes queued before running turned false are committed here, later ones by their callers
+        List<PendingWrite> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            commitGroup(remaining);
+        }
+    }
+
+    /**
+     * Commits the mutations, usually together with those of other concurrent callers, and
+     * returns once they are durable. {@code operation} tags the write; only writes with the
+     * same operation share a commit.
+     */
+    public void commit(DatabaseClient client, String operation, List<Mutation> mutations) {
+        if (!enabled || !running) {
+            spannerWorkloads.write(client, WorkloadClass.TRANSACTION_STATE, operation, mutations);
+            return;
+        }
+        PendingWrite pending = new PendingWrite(client, operation, mutations);
+        queue.add(pending);
+        // stop() may have drained the queue before the add; a write still queued then has no one left to commit it
+        if (!running && queue.remove(pending)) {
+            spannerWorkloads.write(client, WorkloadClass.TRANSACTION_STATE, operation, mutations);
+            return;
+        }
+        try {
+            pending.result.get(awaitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw SpannerExceptionFactory.propagateInterrupt(e);
+        } catch (TimeoutException e) {
+            // A write no committer has taken yet is withdrawn; one being committed may still land, as after a commit timeout
+            boolean withdrawn = queue.remove(pending);
+            throw SpannerExceptionFactory.newSpannerException(withdrawn ? ErrorCode.UNAVAILABLE : ErrorCode.DEADLINE_EXCEEDED,
+                    "Group commit of " + operation + " did not finish within " + awaitTimeoutMillis + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException
+                    ? (RuntimeException) cause
+                    : SpannerExceptionFactory.newSpannerException(cause);
+        }
+    }
+
+    private void commitLoop() {
+        List<PendingWrite> group = new ArrayList<>();
+        while (running) {
+            try {
+                PendingWrite first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+                while (group.size() < maxWriters) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+                commitGroup(group);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (PendingWrite pending : group) {
+                    pending.result.completeExceptionally(SpannerExceptionFactory.propagateInterrupt(e));
+                }
+                return;
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void commitGroup(List<PendingWrite> group) {
+        // Writes for different databases cannot share a commit, and each commit keeps its caller's operation tag
+        Map<DatabaseClient, Map<String, List<PendingWrite>>> byClient = new IdentityHashMap<>();
+        for (PendingWrite pending : group) {
+            byClient.computeIfAbsent(pending.client, client -> new LinkedHashMap<>())
+                    .computeIfAbsent(pending.operation, operation -> new ArrayList<>())
+                    .add(pending);
+        }
+        for (Map.Entry<DatabaseClient, Map<String, List<PendingWrite>>> entry : byClient.entrySet()) {
+            for (Map.Entry<String, List<PendingWrite>> byOperation : entry.getValue().entrySet()) {
+                commitWrites(entry.getKey(), byOperation.getKey(), byOperation.getValue());
+            }
+        }
+    }
+
+    private void commitWrites(DatabaseClient client, String operation, List<PendingWrite> writes) {
+        List<Mutation> mutations = new ArrayList<>();
+        for (PendingWrite pending : writes) {
+            mutations.addAll(pending.mutations);
+        }
+        try {
+            spannerWorkloads.write(client, WorkloadClass.TRANSACTION_STATE, operation, mutations);
+            groupSize.record(writes.size());
+            for (PendingWrite pending : writes) {
+                pending.result.complete(null);
+            }
+        } catch (RuntimeException e) {
+            if (writes.size() == 1) {
+                writes.get(0).result.completeExceptionally(e);
+            } else {
+                logger.warn("Group commit of {} {} writes failed, retrying them one by one: {}", writes.size(), operation, e.getMessage());
+                fallbacks.increment();
+                commitIndividually(client, operation, writes);
+            }
+        }
+    }
+
+    private void commitIndividually(DatabaseClient client, String operation, List<PendingWrite> writes) {
+        for (PendingWrite pending : writes) {
+            try {
+                spannerWorkloads.write(client, WorkloadClass.TRANSACTION_STATE, operation, pending.mutations);
+                groupSize.record(1);
+                pending.result.complete(null);
+            } catch (RuntimeException e) {
+                pending.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        final DatabaseClient client;
+        final String operation;
+        final List<Mutation> mutations;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        PendingWrite(DatabaseClient client, String operation, List<Mutation> mutations) {
+            this.client = client;
+            this.operation = operation;
+            this.mutations = mutations;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.transactionservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PreDestroy;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Optional request hedging for the idempotent calls to payment-service and
+ * reconciliation-service.
+ *
+ * The primary attempt runs first. If it has not answered after the hedge delay (the
+ * observed p95 for that target unless {@code hedging.delay-ms} is set), a second attempt is
+ * sent. It goes out on another pooled connection, which kube-proxy may route to a
+ * different instance. The first successful response wins and the loser's connection is
+ * closed. Hedges are limited by a token budget of {@code hedging.budget-percent} of
+ * primary requests.
+ */
+@Component
+public class RequestHedger {
+
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int MIN_SAMPLES_FOR_P95 = 64;
+    private static final double MAX_BUDGET_TOKENS = 10.0;
+
+    // Set by the attempt thread so the request factory can hand back the connection to cancel
+    private static final ThreadLocal<AtomicReference<HttpURLConnection>> CONNECTION_HOLDER = new ThreadLocal<>();
+
+    private final MeterRegistry meterRegistry;
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final ExecutorService attemptExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "hedged-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private double budgetTokens = MAX_BUDGET_TOKENS;
+
+    @Value("${hedging.enabled:false}")
+    private boolean enabled;
+
+    // Fixed hedge delay; 0 uses the observed p95 of the target
+    @Value("${hedging.delay-ms:0}")
+    private long fixedDelayMs;
+
+    @Value("${hedging.min-delay-ms:50}")
+    private long minDelayMs;
+
+    @Value("${hedging.budget-percent:5}")
+    private double budgetPercent;
+
+    public RequestHedger(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        attemptExecutor.shutdownNow();
+    }
+
+    // Called from the request factory for every connection it opens
+    static void onConnectionOpened(HttpURLConnection connection) {
+        AtomicReference<HttpURLConnection> holder = CONNECTION_HOLDER.get();
+        if (holder != null) {
+            holder.set(connection);
+        }
+    }
+
+    public ResponseEntity<String> execute(String target, RestTemplate restTemplate,
+                                          Function<RestTemplate, ResponseEntity<String>> call) throws Exception {
+        if (!enabled) {
+            return call.apply(restTemplate);
+        }
+        meterRegistry.counter("hedging.requests", "target", target).increment();
+        LatencyWindow window = latencies.computeIfAbsent(target, key -> new LatencyWindow());
+        addBudget();
+
+        Attempt primary = start(restTemplate, call, window);
+        try {
+            return primary.result.get(hedgeDelayMillis(window), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Primary is slower than the hedge delay, fall through to hedging
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+
+        if (!tryAcquireBudget()) {
+            return await(primary.result);
+        }
+        meterRegistry.counter("hedging.hedges", "target", target).increment();
+        Attempt hedge = start(restTemplate, call, window);
+
+        ResponseEntity<String> response = await(firstSuccess(primary.result, hedge.result));
+        if (hedge.result.isDone() && !hedge.result.isCompletedExceptionally() && hedge.result.getNow(null) == response) {
+            meterRegistry.counter("hedging.wins", "target", target).increment();
+        }
+        primary.cancelIfRunning();
+        hedge.cancelIfRunning();
+        return response;
+    }
+
+    private Attempt start(RestTemplate restTemplate, Function<RestTemplate, ResponseEntity<String>> call, LatencyWindow window) {
+        Attempt attempt = new Attempt();
+        attempt.result = CompletableFuture.supplyAsync(() -> {
+            CONNECTION_HOLDER.set(attempt.connection);
+            long start = System.nanoTime();
+            try {
+                ResponseEntity<String> response = call.apply(restTemplate);
+                window.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return response;
+            } finally {
+                CONNECTION_HOLDER.remove();
+            }
+        }, attemptExecutor);
+        return attempt;
+    }
+
+    // Completes with the first successful response, or with the last failure if both attempts fail
+    private CompletableFuture<ResponseEntity<String>> firstSuccess(CompletableFuture<ResponseEntity<String>> first,
+                                                                  CompletableFuture<ResponseEntity<String>> second) {
+        CompletableFuture<ResponseEntity<String>> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<ResponseEntity<String>> attempt : Arrays.asList(first, second)) {
+            attempt.whenComplete((response, error) -> {
+                if (error == null) {
+                    winner.complete(response);
+                } else if (failures.incrementAndGet() == 2) {
+                    winner.completeExceptionally(error);
+                }
+            });
+        }
+        return winner;
+    }
+
+    private long hedgeDelayMillis(LatencyWindow window) {
+        return fixedDelayMs > 0 ? fixedDelayMs : Math.max(minDelayMs, window.p95Millis);
+    }
+
+    private synchronized void addBudget() {
+        budgetTokens = Math.min(MAX_BUDGET_TOKENS, budgetTokens + budgetPercent / 100.0);
+    }
+
+    private synchronized boolean tryAcquireBudget() {
+        if (budgetTokens < 1.0) {
+            return false;
+        }
+        budgetTokens -= 1.0;
+        return true;
+    }
+
+    private static ResponseEntity<String> await(CompletableFuture<ResponseEntity<String>> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    private static final class Attempt {
+        final AtomicReference<HttpURLConnection> connection = new AtomicReference<>();
+        CompletableFuture<ResponseEntity<String>> result;
+
+        void cancelIfRunning() {
+            if (!result.isDone()) {
+                result.cancel(true);
+                HttpURLConnection open = connection.get();
+                if (open != null) {
+                    open.disconnect();
+                }
+            }
+        }
+    }
+
+    private static final class LatencyWindow {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private int count;
+        private volatile long p95Millis;
+
+        synchronized void record(long millis) {
+            samples[count % LATENCY_SAMPLES] = millis;
+            count++;
+            if (count >= MIN_SAMPLES_FOR_P95 && count % MIN_SAMPLES_FOR_P95 == 0) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(count, LATENCY_SAMPLES));
+                Arrays.sort(sorted);
+                p95Millis = sorted[(int) (sorted.length * 0.95)];
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.transactionservice;
+
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.Options;
+import com.google.cloud.spanner.Options.RpcPriority;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.SpannerCallContextTimeoutConfigurator;
+import com.google.cloud.spanner.SpannerOptions;
+import com.google.cloud.spanner.Statement;
+import io.grpc.Context;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import org.threeten.bp.Duration;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Classification layer for every Spanner call made by this service.
+ *
+ * Each call names its workload class and operation. The class decides the RPC priority and
+ * the deadline; the operation becomes the request/transaction tag, so Spanner CPU can be
+ * attributed per operation in the query and transaction statistics tables. Latency is
+ * recorded in the {@code spanner.operation} timer, tagged by class, operation and outcome.
+ */
+@Component
+public class SpannerWorkloads {
+
+    private static final String APP_TAG = "app=transaction-service";
+
+    public enum WorkloadClass {
+        TRANSACTION_STATE(RpcPriority.HIGH, 5_000),
+        AUDIT(RpcPriority.LOW, 10_000),
+        VERIFICATION(RpcPriority.LOW, 2_000);
+
+        private final RpcPriority priority;
+        private final SpannerCallContextTimeoutConfigurator timeouts;
+
+        WorkloadClass(RpcPriority priority, long deadlineMillis) {
+            Duration deadline = Duration.ofMillis(deadlineMillis);
+            this.priority = priority;
+            this.timeouts = SpannerCallContextTimeoutConfigurator.create()
+                    .withCommitTimeout(deadline)
+                    .withExecuteQueryTimeout(deadline)
+                    .withReadTimeout(deadline);
+        }
+    }
+
+    private final MeterRegistry meterRegistry;
+    // Registered once per class and operation, [0] for success and [1] for error, so calls skip the registry lookup
+    private final Map<WorkloadClass, ConcurrentMap<String, Timer[]>> timers = new EnumMap<>(WorkloadClass.class);
+
+    public SpannerWorkloads(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        for (WorkloadClass workloadClass : WorkloadClass.values()) {
+            timers.put(workloadClass, new ConcurrentHashMap<>());
+        }
+    }
+
+    public void write(DatabaseClient client, WorkloadClass workloadClass, String operation, Iterable<Mutation> mutations) {
+        run(workloadClass, operation, () -> client.writeWithOptions(mutations,
+                Options.priority(workloadClass.priority),
+                Options.transactionTag(tag(operation))));
+    }
+
+    // Runs a single-use query; the reader consumes the result set inside the deadline
+    public <T> T query(DatabaseClient client, WorkloadClass workloadClass, String operation,
+                       Statement statement, Function<ResultSet, T> reader) {
+        return run(workloadClass, operation, () -> {
+            try (ResultSet resultSet = client.singleUse().executeQuery(statement, queryOptions(workloadClass, operation))) {
+                return reader.apply(resultSet);
+            }
+        });
+    }
+
+    public Options.QueryOption[] queryOptions(WorkloadClass workloadClass, String operation) {
+        return new Options.QueryOption[] {Options.priority(workloadClass.priority), Options.tag(tag(operation))};
+    }
+
+    public Options.ReadOption[] readOptions(WorkloadClass workloadClass, String operation) {
+        return new Options.ReadOption[] {Options.priority(workloadClass.priority), Options.tag(tag(operation))};
+    }
+
+    /**
+     * Runs a block of Spanner calls under the class deadline and records its latency. Calls
+     * inside the block still pass {@link #queryOptions} or {@link #readOptions} for priority and tags.
+     */
+    public <T> T run(WorkloadClass workloadClass, String operation, Supplier<T> body) {
+        Context context = Context.current().withValue(SpannerOptions.CALL_CONTEXT_CONFIGURATOR_KEY, workloadClass.timeouts);
+        Context previous = context.attach();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = body.get();
+            success = true;
+            return result;
+        } finally {
+            context.detach(previous);
+            timer(workloadClass, operation, success).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Timer timer(WorkloadClass workloadClass, String operation, boolean success) {
+        ConcurrentMap<String, Timer[]> byOperation = timers.get(workloadClass);
+        Timer[] outcomes = byOperation.get(operation);
+        if (outcomes == null) {
+            outcomes = byOperation.computeIfAbsent(operation, op -> new Timer[] {
+                    register(workloadClass, op, "success"), register(workloadClass, op, "error")});
+        }
+        return outcomes[success ? 0 : 1];
+    }
+
+    private Timer register(WorkloadClass workloadClass, String operation, String outcome) {
+        return Timer.builder("spanner.operation")
+                .tag("class", workloadClass.name())
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private static String tag(String operation) {
+        return APP_TAG + ",op=" + operation;
+    }
+}
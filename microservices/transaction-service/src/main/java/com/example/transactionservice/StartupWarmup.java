@@ -0,0 +1,65 @@
+package com.example.transactionservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+
+// Runs before the readiness state switches to ACCEPTING_TRAFFIC, so the pod only
+// receives traffic once the hot path has been warmed up.
+@Component
+public class StartupWarmup implements ApplicationRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupWarmup.class);
+
+    private final TransactionService transactionService;
+    private final ConfigurableApplicationContext context;
+    private final Environment environment;
+
+    @Value("${startup.warmup.iterations:200}")
+    private int warmupIterations;
+
+    // Set during the image build so the training run exits and the JVM writes the AppCDS archive
+    @Value("${startup.exit-after-warmup:false}")
+    private boolean exitAfterWarmup;
+
+    public StartupWarmup(TransactionService transactionService, ConfigurableApplicationContext context, Environment environment) {
+        this.transactionService = transactionService;
+        this.context = context;
+        this.environment = environment;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long contextReadyMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        long warmupStart = System.nanoTime();
+
+        try {
+            // Liveness, not /actuator/health: readiness is REFUSING_TRAFFIC until this runner returns
+            String healthUrl = "http://localhost:" + environment.getProperty("local.server.port", "8080") + "/actuator/health/liveness";
+            transactionService.warmUp(warmupIterations, healthUrl);
+        } catch (Exception e) {
+            logger.warn("Warm-up did not complete: {}", e.getMessage());
+        }
+
+        long warmupMs = (System.nanoTime() - warmupStart) / 1_000_000;
+        logger.info("Startup report: contextReadyMs={} warmupMs={} readyForTrafficMs={} appCds={}",
+                contextReadyMs, warmupMs, contextReadyMs + warmupMs, isSharedArchiveInUse() ? "enabled" : "disabled");
+
+        if (exitAfterWarmup) {
+            System.exit(SpringApplication.exit(context));
+        }
+    }
+
+    private boolean isSharedArchiveInUse() {
+        return ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+                .anyMatch(arg -> arg.startsWith("-XX:SharedArchiveFile"));
+    }
+}
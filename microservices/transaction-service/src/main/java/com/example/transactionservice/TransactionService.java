@@ -1,31 +1,45 @@
 package com.example.transactionservice;
 
+import com.example.common.StepLogger;
+import com.example.transactionservice.SpannerWorkloads.WorkloadClass;
 import com.google.cloud.spanner.*;
 import com.google.cloud.Timestamp;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 
 
 import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.util.Collections;
-import java.util.logging.Logger;
 
 @Service
 public class TransactionService {
 
-    private static final Logger logger = Logger.getLogger(TransactionService.class.getName());
+    private static final Logger logger = LoggerFactory.getLogger(TransactionService.class);
 
     private DatabaseClient spannerClient;
     private DatabaseClient auditSpannerClient;
 
     private final RestTemplate restTemplate;
+    private final StepLogger stepLogger;
+    private final RequestHedger requestHedger;
+    private final SpannerWorkloads spannerWorkloads;
+    private final GroupCommitter groupCommitter;
 
     @Value("${spanner.project-id}")
     private String spannerProjectId;
@@ -45,11 +59,22 @@ public class TransactionService {
     @Value("${reconciliation.service.url}")
     private String reconciliationServiceUrl;
 
+    // Encoding used for payloads sent to the other services (application/cbor or application/json)
+    @Value("${http.client.content-type:application/cbor}")
+    private String clientContentType;
+
+    // Transactions.Timestamp is a commit-timestamp column, so incremental reconciliation can read rows changed since a watermark
+    private static final Timestamp COMMIT_TIMESTAMP = com.google.cloud.spanner.Value.COMMIT_TIMESTAMP;
     private static final int MAX_RETRIES = 3;
     private static final int RETRY_DELAY_MS = 1000;
 
-    public TransactionService() {
+    public TransactionService(StepLogger stepLogger, RequestHedger requestHedger, SpannerWorkloads spannerWorkloads,
+                              GroupCommitter groupCommitter) {
         this.restTemplate = new RestTemplate(createRequestFactory());
+        this.stepLogger = stepLogger;
+        this.requestHedger = requestHedger;
+        this.spannerWorkloads = spannerWorkloads;
+        this.groupCommitter = groupCommitter;
     }
 
     @PostConstruct
@@ -70,20 +95,29 @@ public class TransactionService {
 
             logger.info("Spanner client initialized successfully.");
         } catch (Exception e) {
-            logger.severe("Failed to initialize Spanner client: " + e.getMessage());
+            logger.error("Failed to initialize Spanner client: {}", e.getMessage());
             throw e;
         }
     }
 
     private ClientHttpRequestFactory createRequestFactory() {
-        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory() {
+            @Override
+            protected void prepareConnection(HttpURLConnection connection, String httpMethod) throws IOException {
+                super.prepareConnection(connection, httpMethod);
+                // Lets RequestHedger close the connection of a losing attempt
+                RequestHedger.onConnectionOpened(connection);
+            }
+        };
         factory.setConnectTimeout(10000); // 10 seconds
         factory.setReadTimeout(10000); // 10 seconds
         return factory;
     }
 
     public void processTransaction(TransactionRequest transactionRequest) {
-        logger.info("Processing transaction: " + transactionRequest);
+        String puid = transactionRequest.getPuid();
+        stepLogger.begin(puid);
+        stepLogger.step("Processing transaction userId={} amount={}", transactionRequest.getUserId(), transactionRequest.getAmount());
 
         try {
             // Step 1: Save transaction with PENDING status
@@ -105,43 +139,60 @@ public class TransactionService {
             // Step 6: Log the audit trail for status update
             logAuditTrail(transactionRequest.getPuid(), "TransactionService", "UPDATE_STATUS", finalStatus, "{}", 0, "");
 
+            if ("FAILED".equals(finalStatus)) {
+                stepLogger.fail("Transaction finished with status={} puid={}", finalStatus, puid);
+            } else {
+                stepLogger.step("Transaction finished with status={}", finalStatus);
+            }
+        } catch (PaymentRejectedException e) {
+            // A pre-check rejection is final, so the payment is neither retried nor reconciled
+            stepLogger.fail("Payment rejected puid={} reason={}", puid, e.getMessage());
+            updateTransactionStatus(transactionRequest.getPuid(), "FAILED");
+            logAuditTrail(transactionRequest.getPuid(), "TransactionService", "PROCESS_TRANSACTION", "REJECTED", "{}", 0, e.getMessage());
         } catch (Exception e) {
-            logger.severe("Transaction processing failed: " + e.getMessage());
+            stepLogger.fail("Transaction processing failed puid={} error={}", puid, e.getMessage());
             updateTransactionStatus(transactionRequest.getPuid(), "FAILED");
             logAuditTrail(transactionRequest.getPuid(), "TransactionService", "PROCESS_TRANSACTION", "FAILED", "{}", 0, e.getMessage());
+        } finally {
+            stepLogger.end();
         }
     }
 
     private void saveTransaction(TransactionRequest transactionRequest, String status) {
-        Mutation mutation = Mutation.newInsertOrUpdateBuilder("Transactions")
+        groupCommitter.commit(spannerClient, "save_transaction",
+                Collections.singletonList(buildTransactionMutation(transactionRequest, status)));
+        stepLogger.step("Transaction saved with status={}", status);
+    }
+
+    private Mutation buildTransactionMutation(TransactionRequest transactionRequest, String status) {
+        return Mutation.newInsertOrUpdateBuilder("Transactions")
                 .set("PUID").to(transactionRequest.getPuid())
                 .set("UserId").to(transactionRequest.getUserId())
                 .set("Amount").to(transactionRequest.getAmount())
                 .set("Status").to(status)
-                .set("Timestamp").to(Timestamp.now())
+                .set("Timestamp").to(COMMIT_TIMESTAMP)
                 .build();
-        spannerClient.write(Collections.singletonList(mutation));
     }
 
     private boolean callPaymentService(TransactionRequest transactionRequest, int retryCount) {
         try {
-            logger.info("Calling Payment Service...");
-            ResponseEntity<String> response = restTemplate.postForEntity(
-                    paymentServiceUrl + "/payments",
-                    transactionRequest,
-                    String.class
-            );
+            stepLogger.step("Calling Payment Service attempt={}", retryCount);
+            ResponseEntity<String> response = requestHedger.execute("payment-service", restTemplate,
+                    template -> postToService(template, paymentServiceUrl + "/payments", transactionRequest));
             if (response.getStatusCode().is2xxSuccessful()) {
-                logger.info("Payment Service Response: " + response.getBody());
+                stepLogger.step("Payment Service response={}", response.getBody());
                 logAuditTrail(transactionRequest.getPuid(), "PaymentService", "PROCESS_PAYMENT", "COMPLETED", response.getBody(), retryCount, "");
                 return true;
             } else {
-                logger.warning("Payment Service failed with status: " + response.getStatusCode());
+                logger.warn("Payment Service failed with status={}", response.getStatusCode());
                 logAuditTrail(transactionRequest.getPuid(), "PaymentService", "PROCESS_PAYMENT", "FAILED", response.getBody(), retryCount, "Payment Service failed");
                 return false;
             }
+        } catch (HttpClientErrorException.UnprocessableEntity e) {
+            logAuditTrail(transactionRequest.getPuid(), "PaymentService", "PROCESS_PAYMENT", "REJECTED", e.getResponseBodyAsString(), retryCount, e.getMessage());
+            throw new PaymentRejectedException(e.getResponseBodyAsString());
         } catch (Exception e) {
-            logger.severe("Error calling Payment Service: " + e.getMessage());
+            logger.error("Error calling Payment Service: {}", e.getMessage());
             logAuditTrail(transactionRequest.getPuid(), "PaymentService", "PROCESS_PAYMENT", "FAILED", "{}", retryCount, e.getMessage());
             return false;
         }
@@ -149,34 +200,57 @@ public class TransactionService {
 
     private boolean callReconciliationService(TransactionRequest transactionRequest, int retryCount) {
         try {
-            logger.info("Calling Reconciliation Service...");
-            ResponseEntity<String> response = restTemplate.postForEntity(
-                    reconciliationServiceUrl + "/reconciliation",
-                    transactionRequest,
-                    String.class
-            );
+            stepLogger.step("Calling Reconciliation Service attempt={}", retryCount);
+            ResponseEntity<String> response = requestHedger.execute("reconciliation-service", restTemplate,
+                    template -> postToService(template, reconciliationServiceUrl + "/reconciliation", transactionRequest));
             if (response.getStatusCode().is2xxSuccessful()) {
-                logger.info("Reconciliation Service Response: " + response.getBody());
+                stepLogger.step("Reconciliation Service response={}", response.getBody());
                 logAuditTrail(transactionRequest.getPuid(), "ReconciliationService", "PROCESS_RECONCILIATION", "COMPLETED", response.getBody(), retryCount, "");
                 return true;
             } else {
-                logger.warning("Reconciliation Service failed with status: " + response.getStatusCode());
+                logger.warn("Reconciliation Service failed with status={}", response.getStatusCode());
                 logAuditTrail(transactionRequest.getPuid(), "ReconciliationService", "PROCESS_RECONCILIATION", "FAILED", response.getBody(), retryCount, "Reconciliation Service failed");
                 return false;
             }
         } catch (Exception e) {
-            logger.severe("Error calling Reconciliation Service: " + e.getMessage());
+            logger.error("Error calling Reconciliation Service: {}", e.getMessage());
             logAuditTrail(transactionRequest.getPuid(), "ReconciliationService", "PROCESS_RECONCILIATION", "FAILED", "{}", retryCount, e.getMessage());
             return false;
         }
     }
 
+    private ResponseEntity<String> postToService(RestTemplate template, String url, Object payload) {
+        MediaType contentType = MediaType.parseMediaType(clientContentType);
+        try {
+            return template.postForEntity(url, createRequestEntity(payload, contentType), String.class);
+        } catch (HttpClientErrorException.UnsupportedMediaType e) {
+            if (MediaType.APPLICATION_JSON.includes(contentType)) {
+                throw e;
+            }
+            // Downstream does not understand the binary encoding yet, fall back to JSON
+            logger.warn("Service at {} rejected {}, retrying with JSON", url, contentType);
+            return template.postForEntity(url, createRequestEntity(payload, MediaType.APPLICATION_JSON), String.class);
+        }
+    }
+
+    private HttpEntity<Object> createRequestEntity(Object payload, MediaType contentType) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(contentType);
+        return new HttpEntity<>(payload, headers);
+    }
+
     private void updateTransactionStatus(String puid, String status) {
-        Mutation mutation = Mutation.newUpdateBuilder("Transactions")
+        groupCommitter.commit(spannerClient, "update_transaction_status",
+                Collections.singletonList(buildStatusMutation(puid, status)));
+        stepLogger.step("Transaction status updated to status={}", status);
+    }
+
+    private Mutation buildStatusMutation(String puid, String status) {
+        return Mutation.newUpdateBuilder("Transactions")
                 .set("PUID").to(puid)
                 .set("Status").to(status)
+                .set("Timestamp").to(COMMIT_TIMESTAMP)
                 .build();
-        spannerClient.write(Collections.singletonList(mutation));
     }
 
     private void logAuditTrail(String puid, String serviceName, String action, String status, Object metadata, int retryCount, String errorDetails) {
@@ -184,29 +258,33 @@ public class TransactionService {
             ObjectMapper objectMapper = new ObjectMapper();
             String metadataJson = objectMapper.writeValueAsString(metadata);
 
-            Mutation mutation = Mutation.newInsertOrUpdateBuilder("payment_audit_trail")
-                    .set("PUID").to(puid)
-                    .set("Action").to(action)
-                    .set("Status").to(status)
-                    .set("ServiceName").to(serviceName)
-                    .set("Metadata").to(metadataJson)
-                    .set("RetryCount").to(retryCount)
-                    .set("ErrorDetails").to(errorDetails)
-                    .set("Timestamp").to(Timestamp.now())
-                    .build();
+            Mutation mutation = buildAuditTrailMutation(puid, serviceName, action, status, metadataJson, retryCount, errorDetails);
 
-            auditSpannerClient.write(Collections.singletonList(mutation));
-            logger.info("Audit trail logged successfully for PUID: " + puid);
+            spannerWorkloads.write(auditSpannerClient, WorkloadClass.AUDIT, "write_audit_trail", Collections.singletonList(mutation));
+            stepLogger.step("Audit trail logged action={} status={}", action, status);
 
             boolean isValidated = validateAuditTrailEntry(puid, action, status);
             if (!isValidated) {
-                logger.warning("Audit trail entry validation failed for PUID: " + puid + ", Action: " + action);
+                logger.warn("Audit trail entry validation failed for action={}", action);
             }
         } catch (Exception e) {
-            logger.severe("Error logging audit trail: " + e.getMessage());
+            logger.error("Error logging audit trail: {}", e.getMessage());
         }
     }
 
+    private Mutation buildAuditTrailMutation(String puid, String serviceName, String action, String status, String metadataJson, int retryCount, String errorDetails) {
+        return Mutation.newInsertOrUpdateBuilder("payment_audit_trail")
+                .set("PUID").to(puid)
+                .set("Action").to(action)
+                .set("Status").to(status)
+                .set("ServiceName").to(serviceName)
+                .set("Metadata").to(metadataJson)
+                .set("RetryCount").to(retryCount)
+                .set("ErrorDetails").to(errorDetails)
+                .set("Timestamp").to(Timestamp.now())
+                .build();
+    }
+
     private boolean validateAuditTrailEntry(String puid, String action, String status) {
         try {
             String query = "SELECT COUNT(*) AS entry_count FROM payment_audit_trail WHERE PUID = @puid AND Action = @action AND Status = @status";
@@ -217,18 +295,46 @@ public class TransactionService {
                     .bind("status").to(status)
                     .build();
 
-            try (ResultSet resultSet = auditSpannerClient.singleUse().executeQuery(statement)) {
-                if (resultSet.next()) {
-                    long count = resultSet.getLong("entry_count");
-                    return count > 0;
-                }
-            }
+            return spannerWorkloads.query(auditSpannerClient, WorkloadClass.VERIFICATION, "validate_audit_trail", statement,
+                    resultSet -> resultSet.next() && resultSet.getLong("entry_count") > 0);
         } catch (Exception e) {
-            logger.severe("Error validating audit trail entry: " + e.getMessage());
+            logger.error("Error validating audit trail entry: {}", e.getMessage());
         }
         return false;
     }
 
+    /**
+     * Exercises the JSON/CBOR binding, the mutation builders and the HTTP client so the
+     * first real transactions do not pay for class loading and JIT compilation.
+     * Nothing is written to Spanner.
+     */
+    public void warmUp(int iterations, String healthUrl) throws Exception {
+        ObjectMapper jsonMapper = new ObjectMapper();
+        ObjectMapper cborMapper = new CBORMapper();
+        int httpFailures = 0;
+        String lastHttpFailure = null;
+        for (int i = 0; i < iterations; i++) {
+            TransactionRequest sample = new TransactionRequest("warmup-" + i, "warmup-user", 10.0 + i);
+            jsonMapper.readValue(jsonMapper.writeValueAsBytes(sample), TransactionRequest.class);
+            cborMapper.readValue(cborMapper.writeValueAsBytes(sample), TransactionRequest.class);
+
+            buildTransactionMutation(sample, "PENDING");
+            buildStatusMutation(sample.getPuid(), "COMPLETED");
+            buildAuditTrailMutation(sample.getPuid(), "TransactionService", "SAVE_TRANSACTION", "PENDING",
+                    jsonMapper.writeValueAsString(sample), 0, "");
+
+            try {
+                restTemplate.getForEntity(healthUrl, String.class);
+            } catch (RestClientException e) {
+                httpFailures++;
+                lastHttpFailure = e.getMessage();
+            }
+        }
+        if (httpFailures > 0) {
+            logger.warn("HTTP client warm-up failed {} of {} calls to {}: {}", httpFailures, iterations, healthUrl, lastHttpFailure);
+        }
+    }
+
     private boolean retryWithDelay(RunnableWithBoolean operation, int maxRetries) {
         int retryCount = 0;
         while (retryCount < maxRetries) {
@@ -250,4 +356,11 @@ public class TransactionService {
     private interface RunnableWithBoolean {
         boolean run();
     }
+
+    // Thrown through retryWithDelay when payment-service answers 422, which retrying cannot change
+    private static final class PaymentRejectedException extends RuntimeException {
+        PaymentRejectedException(String reason) {
+            super(reason);
+        }
+    }
 }
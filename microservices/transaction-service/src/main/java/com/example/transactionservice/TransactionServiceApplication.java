@@ -1,11 +1,19 @@
 package com.example.transactionservice;
 
+import com.example.common.StepLogger;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
 
 @SpringBootApplication
 public class TransactionServiceApplication {
     public static void main(String[] args) {
         SpringApplication.run(TransactionServiceApplication.class, args);
     }
+
+    @Bean
+    public StepLogger stepLogger(@Value("${logging.step-sampling.percent:1}") int samplePercent) {
+        return new StepLogger("com.example.transactionservice.steps", samplePercent);
+    }
 }